@@ -0,0 +1,69 @@
+package demo.bench;
+
+import demo.transport.Console;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Console.Reader separator scan and record assembly, over 1MB of stdin.
+ * Score is per record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleReaderBenchmark {
+
+    private static final int INPUT_SIZE = 1024 * 1024;
+
+    @Param({"100", "1000", "10000"})
+    public int recordSize;
+
+    private byte[] input;
+    private InputStream originalIn;
+
+    @Setup
+    public void setUp() {
+        input = new byte[INPUT_SIZE - INPUT_SIZE % recordSize];
+        Arrays.fill(input, (byte) 'x');
+        for (int i = recordSize - 1; i < input.length; i += recordSize) {
+            input[i] = '\n';
+        }
+        originalIn = System.in;
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setIn(originalIn);
+    }
+
+    @Benchmark
+    public void readRecords(Blackhole blackhole, RecordCounter counter) throws IOException {
+        System.setIn(new ByteArrayInputStream(input));
+        new Console.Reader('\n', Function.identity(), blackhole::consume).run();
+        counter.records += input.length / recordSize;
+    }
+
+    /**
+     * Reports records per millisecond, rather than 1MB inputs per millisecond.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RecordCounter {
+        public long records;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            records = 0;
+        }
+    }
+}
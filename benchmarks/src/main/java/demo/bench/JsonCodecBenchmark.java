@@ -0,0 +1,60 @@
+package demo.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import demo.codec.JsonCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * JsonCodec.over round-trip (decode, process, encode) over event-like JSON payloads of increasing size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int fieldCount;
+
+    private byte[] payload;
+    private Function<byte[], byte[]> processor;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Random random = new Random(42);
+        final Map<String, Object> event = new LinkedHashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    event.put("user_" + i, "u" + random.nextInt(1_000_000));
+                    break;
+                case 1:
+                    event.put("count_" + i, random.nextInt());
+                    break;
+                case 2:
+                    event.put("url_" + i, "https://example.com/path/" + random.nextInt(10_000) + "?q=" + random.nextLong());
+                    break;
+                default:
+                    event.put("score_" + i, random.nextDouble());
+            }
+        }
+        payload = new ObjectMapper().writeValueAsBytes(event);
+        processor = JsonCodec.over(map -> {
+            map.put("validated", Boolean.TRUE);
+            return map;
+        });
+    }
+
+    @Benchmark
+    public byte[] roundTrip() {
+        return processor.apply(payload);
+    }
+}
@@ -0,0 +1,85 @@
+package demo.bench;
+
+import demo.transport.InProcessBroker;
+import demo.transport.RabbitMQ;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * RabbitMQ.Writer and RabbitMQ.Reader against the in-process broker stand-in, so the score is the transport
+ * overhead of this module (plus the stand-in queue), not network or broker time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RabbitMQBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"100", "4096"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private InProcessBroker broker;
+    private RabbitMQ.Writer publishOnlyWriter;
+    private RabbitMQ.Writer pipelineInputWriter;
+    private RabbitMQ.Context readerContext;
+    private final AtomicLong pipelineOutputCount = new AtomicLong();
+    private Thread readerThread;
+
+    @Setup
+    public void setUp() throws Exception {
+        payload = new byte[payloadSize];
+        broker = new InProcessBroker();
+        publishOnlyWriter = new RabbitMQ.Writer("publish-only", broker.newContext());
+        pipelineInputWriter = new RabbitMQ.Writer("pipeline-in", broker.newContext());
+
+        readerContext = broker.newContext();
+        final RabbitMQ.Reader reader = new RabbitMQ.Reader("pipeline-in", readerContext, Function.identity(),
+                record -> pipelineOutputCount.incrementAndGet());
+        readerThread = new Thread(() -> {
+            try {
+                reader.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        readerContext.channel.queueDelete("pipeline-in");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publish() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            publishOnlyWriter.accept(payload);
+        }
+        readerContext.channel.queueDelete("publish-only"); // drop published messages, keeps heap flat
+    }
+
+    /**
+     * Publish a batch and wait until the reader has pushed all of it through processor and record writer.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishAndConsume() throws Exception {
+        final long target = pipelineOutputCount.get() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            pipelineInputWriter.accept(payload);
+        }
+        while (pipelineOutputCount.get() < target) {
+            Thread.yield();
+        }
+    }
+}
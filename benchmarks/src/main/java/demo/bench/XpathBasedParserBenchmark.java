@@ -0,0 +1,65 @@
+package demo.bench;
+
+import demo.support.XpathBasedParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XpathBasedParser over a generated multi-MB item feed, splitting one type or two types (nested) in a single pass.
+ * Score is per feed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XpathBasedParserBenchmark {
+
+    @Param({"10000"})
+    public int itemCount;
+
+    private byte[] feed;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(bytes);
+        out.println("<items>");
+        for (int i = 0; i < itemCount; i++) {
+            out.println("  <item id=\"" + i + "\" type=\"product\">");
+            out.println("    <name>Item number " + i + "</name>");
+            out.println("    <description>" + "Lorem ipsum dolor sit amet, consectetur adipiscing elit. " + random.nextLong() + "</description>");
+            out.println("    <price currency=\"USD\">" + random.nextInt(100_000) / 100.0 + "</price>");
+            for (int r = 0; r < 3; r++) {
+                out.println("    <review rating=\"" + random.nextInt(5) + "\"><author>user" + random.nextInt(1000) + "</author><text>Review text " + random.nextLong() + "</text></review>");
+            }
+            out.println("  </item>");
+        }
+        out.println("</items>");
+        out.flush();
+        feed = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public void splitItems(Blackhole blackhole) throws Exception {
+        new XpathBasedParser(new XpathBasedParser.Registry()
+                .register("/items/item", XpathBasedParser.ItemParser::new, blackhole::consume))
+                .parse(new ByteArrayInputStream(feed));
+    }
+
+    @Benchmark
+    public void splitItemsAndReviews(Blackhole blackhole) throws Exception {
+        new XpathBasedParser(new XpathBasedParser.Registry()
+                .register("/items/item", XpathBasedParser.ItemParser::new, blackhole::consume)
+                .register("//review", XpathBasedParser.ItemParser::new, blackhole::consume))
+                .parse(new ByteArrayInputStream(feed));
+    }
+}
@@ -1,17 +1,33 @@
 package demo;
 
+import com.rabbitmq.client.AMQP;
+import demo.codec.InlineHeader;
+import demo.support.Deduplicator;
+import demo.transport.FileSystem;
 import demo.transport.RabbitMQ;
+import demo.transport.SegmentStore;
 
 import java.io.*;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 public class DemoGetParserEventsFromRabbitMQSaveToFile {
 
     private static String inQueue;
     private static String baseDir;
+    private static int ioThreads = 4;
+    private static int syncEvery = 0;
+    private static boolean isSegmentStore = false;
+    private static boolean isDedup = false;
+    private static String dedupSnapshotFile;
+
+    private static final long DEDUP_EXPECTED_IDS_PER_HOUR = 1_000_000;
+
+    private static final int MAX_KNOWN_TYPES = 64;
+    private static final List<String> knownTypes = new CopyOnWriteArrayList<>();
 
     public static void main(String... args) throws Exception {
         parseArgs(args);
@@ -23,56 +39,113 @@ public class DemoGetParserEventsFromRabbitMQSaveToFile {
         System.err.println("Consuming from rabbitMQ: " + inQueue + "@" + rabbitContext.host + " . Writing to base dir: " + baseDir + ".");
         System.err.println("Program will not stop until you break it with ^C.");
 
-        final java.util.function.Consumer<byte[]> writer = singleRecordBytes -> {
-
-            // Parse header line - look for '\n'
-            final int indexOfNewLine = ((Function<byte[], Integer>) bytes -> {
-                for (int i = 0; i < bytes.length; i++) {
-                    if (bytes[i] == '\n') return i;
-                }
-                return -1;
-            }).apply(singleRecordBytes);
-
-            if (indexOfNewLine > 0) {
-
-                // We found header line containing comma separated list of "key:value"
-                final byte[] headerBytes = Arrays.copyOf(singleRecordBytes, indexOfNewLine - 1);
+        final FileSystem.Writer fileWriter = isSegmentStore ? null : new FileSystem.Writer(ioThreads, FileSystem.Writer.DEFAULT_QUEUE_CAPACITY, syncEvery);
+        final SegmentStore segmentStore = isSegmentStore ? new SegmentStore(new File(baseDir)) : null;
 
-                // Convert header line to Map
-                final Map<String, String> headers = ((Function<byte[], Map<String, String>>) bytes ->
-                        Arrays.stream(new String(bytes).split(","))
-                                .map(kv -> kv.split(":"))
-                                .collect(Collectors.toMap(
-                                        (String[] kv) -> kv[0], kv -> kv[1]
-                                ))
-                ).apply(headerBytes);
+        if (segmentStore != null) segmentStore.flushPeriodically(1000);
 
-                final String type = headers.get("type");
-                final String id = headers.get("id");
-                final String shortId = id.substring(0, 2);
+        // Messages are acknowledged on delivery: on ^C, stop consuming then write out the records still buffered
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (rabbitContext.connection.isOpen()) rabbitContext.shutdown();
+            if (fileWriter != null) fileWriter.close();
+            if (segmentStore != null) segmentStore.close();
+        }, "shutdown"));
 
-                final File file = new File(baseDir, type + "/" + shortId + "/" + id + "/content.xml");
-                file.getParentFile().mkdirs();
-
-                final String startOfContent = new String(singleRecordBytes, indexOfNewLine + 1, Math.min(singleRecordBytes.length - indexOfNewLine - 1, 30));
-                System.out.println("Writing to file: " + file + " Content: " + startOfContent);
+        final BiConsumer<AMQP.BasicProperties, byte[]> writer = (properties, singleRecordBytes) -> {
+            final String type = type(properties, singleRecordBytes);
+            final String id = id(properties, singleRecordBytes);
+            if (type == null || type.isEmpty() || id == null || id.isEmpty()) {
+                System.err.println("Record ignored: missing type or id");
+                return;
+            }
 
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    fos.write(singleRecordBytes);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            if (isSegmentStore) {
+                segmentStore.write(type, id, singleRecordBytes);
             } else {
-                System.err.println("Record ignored: missing header line");
+                fileWriter.write(contentFile(type, id), singleRecordBytes);
             }
         };
 
-        final RabbitMQ.Reader rabbitMQReader = new RabbitMQ.Reader(inQueue, rabbitContext, Function.identity(), writer);
-        rabbitMQReader.run();
+        // Redelivered or re-imported records: a stored record is confirmed by a lookup in the store
+        final BiFunction<AMQP.BasicProperties, byte[], byte[]> processor = (properties, body) -> body;
+        final Deduplicator deduplicator = isDedup
+                ? new Deduplicator(DemoGetParserEventsFromRabbitMQSaveToFile::storageKey, DEDUP_EXPECTED_IDS_PER_HOUR,
+                        storageKey -> isStored(storageKey, segmentStore))
+                : null;
+        if (deduplicator != null && dedupSnapshotFile != null) deduplicator.snapshotPeriodically(new File(dedupSnapshotFile), 60);
+
+        final RabbitMQ.Reader rabbitMQReader = new RabbitMQ.Reader(inQueue, rabbitContext,
+                deduplicator == null ? processor : deduplicator.over(processor), writer);
+        try {
+            rabbitMQReader.run();
+        } finally {
+            if (fileWriter != null) fileWriter.close();
+            if (segmentStore != null) segmentStore.close();
+        }
 
         System.err.println("Program ended");
     }
 
+    /**
+     * Routing metadata comes from AMQP headers. Records without them may carry a legacy inline header line.
+     *
+     * @return type of record, or null if absent
+     */
+    private static String type(AMQP.BasicProperties properties, byte[] record) {
+        final String type = RabbitMQ.header(properties, "type");
+        if (type != null) return type;
+        final int headerEnd = InlineHeader.headerEnd(record);
+        return headerEnd > 0 ? typeName(record, InlineHeader.find(record, headerEnd, "type")) : null;
+    }
+
+    /**
+     * @return id of record, or null if absent. See {@link #type(AMQP.BasicProperties, byte[])}.
+     */
+    private static String id(AMQP.BasicProperties properties, byte[] record) {
+        final String id = RabbitMQ.header(properties, "id");
+        if (id != null) return id;
+        final int headerEnd = InlineHeader.headerEnd(record);
+        return headerEnd > 0 ? InlineHeader.value(record, headerEnd, "id") : null;
+    }
+
+    /**
+     * @return "type/id" of record, the deduplication key, or null if it has no type or id
+     */
+    private static String storageKey(AMQP.BasicProperties properties, byte[] record) {
+        final String type = type(properties, record);
+        final String id = id(properties, record);
+        return type == null || type.isEmpty() || id == null || id.isEmpty() ? null : type + '/' + id;
+    }
+
+    /**
+     * Exact check of the deduplicator: the record of storageKey is in the store
+     */
+    private static boolean isStored(String storageKey, SegmentStore segmentStore) {
+        final int separator = storageKey.indexOf('/');
+        final String type = storageKey.substring(0, separator);
+        final String id = storageKey.substring(separator + 1);
+        return segmentStore != null ? segmentStore.read(type, id) != null : contentFile(type, id).exists();
+    }
+
+    private static File contentFile(String type, String id) {
+        final String shortId = id.length() > 2 ? id.substring(0, 2) : id;
+        return new File(baseDir, type + "/" + shortId + "/" + id + "/content.xml");
+    }
+
+    /**
+     * Resolves an inline header type value to a String without allocating: the handful of distinct types are
+     * matched against the ones seen before, right in the record bytes.
+     */
+    private static String typeName(byte[] record, long range) {
+        if (range == InlineHeader.NOT_FOUND) return null;
+        for (String knownType : knownTypes) {
+            if (InlineHeader.valueEquals(record, range, knownType)) return knownType;
+        }
+        final String type = new String(record, InlineHeader.start(range), InlineHeader.end(range) - InlineHeader.start(range), StandardCharsets.UTF_8);
+        if (knownTypes.size() < MAX_KNOWN_TYPES) knownTypes.add(type);
+        return type;
+    }
+
     private static void parseArgs(String... args) throws Exception {
         try {
             for (int i = 0; i < args.length; i++) {
@@ -86,6 +159,21 @@ public class DemoGetParserEventsFromRabbitMQSaveToFile {
                         final String arg3 = args[++i];
                         baseDir = arg3;
                         break;
+                    case "--io-threads":
+                        ioThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--sync-every":
+                        syncEvery = Integer.parseInt(args[++i]);
+                        break;
+                    case "--segment-store":
+                        isSegmentStore = true;
+                        break;
+                    case "--dedup":
+                        isDedup = true;
+                        break;
+                    case "--dedup-snapshot":
+                        dedupSnapshotFile = args[++i];
+                        break;
                 }
             }
         } catch (Exception e) {
@@ -93,7 +181,7 @@ public class DemoGetParserEventsFromRabbitMQSaveToFile {
         }
 
         if (inQueue == null || baseDir == null) {
-            throw new IllegalArgumentException("Usage: --in-queue <rabbitMQ-input-queue> --base-dir <base-dir-for-event-storage>");
+            throw new IllegalArgumentException("Usage: --in-queue <rabbitMQ-input-queue> --base-dir <base-dir-for-event-storage> [--io-threads <n>] [--sync-every <n-files>] [--segment-store] [--dedup [--dedup-snapshot <file>]]");
         }
     }
 }
@@ -0,0 +1,108 @@
+package demo;
+
+import com.rabbitmq.client.AMQP;
+import demo.support.Metrics;
+import demo.transport.RabbitMQ;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Consumes the messages published by {@link DemoWriteToRabbitMQ} and records their end-to-end latency:
+ * time of consumption - intended send time (header {@value RabbitMQ#SEND_TIME_HEADER}). Measuring from the intended,
+ * not the actual, send time keeps publisher stalls in the figures (no coordinated omission).
+ * Prints the latency distribution periodically, and when the queue is deleted.
+ * Latencies across processes assume synchronized clocks; run the sink on the generator host for sub-millisecond figures.
+ */
+public class DemoLatencySink {
+    private static String inQueue;
+    private static long reportIntervalSeconds = 10;
+
+    public static void main(String... args) throws Exception {
+        parseArgs(args);
+
+        final RabbitMQ.Context rabbitContext = new RabbitMQ.Context("localhost");
+        final Metrics.Histogram latencyMicros = new Metrics.Histogram();
+
+        System.err.print("Program started. ");
+        System.err.println("Measuring latency of messages from rabbitMQ: " + inQueue + "@" + rabbitContext.host + ".");
+        System.err.println("Program will not stop until you break it with ^C.");
+
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> printReport(latencyMicros, System.err), reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+
+        new RabbitMQ.Reader(inQueue, rabbitContext, (properties, body) -> body, recorder(latencyMicros, new AtomicLong())).run();
+
+        reporter.shutdownNow();
+        printReport(latencyMicros, System.err);
+        System.err.println("Program ended");
+    }
+
+    /**
+     * Starts consuming queue in a background thread, recording latencies (in microseconds) to latencyMicros.
+     * The thread ends, and shuts context down, once the queue is deleted.
+     *
+     * @return the consuming thread
+     */
+    static Thread start(String queue, RabbitMQ.Context context, Metrics.Histogram latencyMicros, AtomicLong received) {
+        final RabbitMQ.Reader reader = new RabbitMQ.Reader(queue, context, (properties, body) -> body, recorder(latencyMicros, received));
+        final Thread thread = new Thread(() -> {
+            try {
+                reader.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "latency-sink");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static BiConsumer<AMQP.BasicProperties, byte[]> recorder(Metrics.Histogram latencyMicros, AtomicLong received) {
+        return (properties, body) -> {
+            final long nowMicros = Metrics.epochMicros();
+            final long sendTimeMicros = RabbitMQ.sendTimeMicros(properties);
+            if (sendTimeMicros >= 0) {
+                latencyMicros.record(nowMicros - sendTimeMicros);
+            }
+            received.incrementAndGet();
+        };
+    }
+
+    static void printReport(Metrics.Histogram latencyMicros, PrintStream out) {
+        out.println("End-to-end latency (us) of " + latencyMicros.count() + " messages:"
+                + " p50=" + latencyMicros.percentile(50)
+                + " p90=" + latencyMicros.percentile(90)
+                + " p99=" + latencyMicros.percentile(99)
+                + " p99.9=" + latencyMicros.percentile(99.9)
+                + " p99.99=" + latencyMicros.percentile(99.99)
+                + " max=" + latencyMicros.max());
+    }
+
+    private static void parseArgs(String... args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--in-queue":
+                        final String arg2 = args[++i];
+                        inQueue = arg2;
+                        break;
+                    case "--report-interval":
+                        reportIntervalSeconds = Long.parseLong(args[++i]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (inQueue == null || reportIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("Usage: --in-queue <rabbitMQ-input-queue> [--report-interval <seconds>]");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package demo;
+
+import demo.codec.JsonCodec;
+import demo.support.Sketches;
+import demo.transport.Console;
+import demo.transport.RabbitMQ;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Sketches a field of JSON records (distinct count, top values or quantiles), publishing sketch records periodically,
+ * for intervals aligned on multiples of the publish interval.
+ * With --merge, merges the sketch records published by several instances instead.
+ * E.g. --sketch distinct --field userId --group-field country --publish-interval 60
+ */
+public class DemoSketches {
+
+    private static String inQueue;
+    private static String outQueue;
+    private static boolean isConsoleMode = false;
+    private static boolean isMergeMode = false;
+    private static String sketch;
+    private static String field;
+    private static String groupField;
+    private static long publishIntervalSeconds = 60;
+
+    public static void main(String... args) throws Exception {
+        parseArgs(args);
+        final Supplier<Sketches.Sketch> sketchFactory = sketchFactory();
+
+        System.err.print("Program started. ");
+        if (isConsoleMode) {
+            System.err.println("Consuming from stdin. Writing to stdout.");
+            System.err.println("Program will not stop until you close stdin (using ^D/^Z) or break it with ^C.");
+
+            final Console.Writer consoleWriter = new Console.Writer('\n');
+            if (isMergeMode) {
+                new Console.Reader('\n', mergeProcessor(sketchFactory), consoleWriter)
+                        .run();
+            } else {
+                final Sketches.Operator operator = operator(sketchFactory);
+                new Console.Reader('\n', sketchingProcessor(operator), consoleWriter)
+                        .run();
+                operator.flush(consoleWriter);
+            }
+
+        } else {
+            System.err.println("Consuming from rabbitMQ: " + inQueue + "@localhost . Writing to rabbitMQ: " + outQueue + "@localhost.");
+            System.err.println("Program will stop when input queue is deleted or when you break it with ^C.");
+
+            final RabbitMQ.Context rabbitMQContext = new RabbitMQ.Context("localhost");
+            if (isMergeMode) {
+                new RabbitMQ.Reader(inQueue, rabbitMQContext, mergeProcessor(sketchFactory), new RabbitMQ.Writer(outQueue, rabbitMQContext))
+                        .run();
+            } else {
+                // Published from another thread than the reader's: own connection
+                final RabbitMQ.Context writerContext = new RabbitMQ.Context("localhost");
+                final RabbitMQ.Writer rabbitMQWriter = new RabbitMQ.Writer(outQueue, writerContext);
+                final Sketches.Operator operator = operator(sketchFactory);
+                try {
+                    operator.publishPeriodically(rabbitMQWriter);
+                    new RabbitMQ.Reader(inQueue, rabbitMQContext, sketchingProcessor(operator), rabbitMQWriter)
+                            .run();
+                    // Stops the publisher first: the writer's channel must not be used by two threads at once
+                    operator.close();
+                    operator.flush(rabbitMQWriter);
+                } finally {
+                    operator.close();
+                    writerContext.shutdown();
+                }
+            }
+        }
+
+        System.err.println("Program ended");
+    }
+
+    private static Sketches.Operator operator(Supplier<Sketches.Sketch> sketchFactory) {
+        return new Sketches.Operator(field, groupField, sketchFactory, TimeUnit.SECONDS.toMillis(publishIntervalSeconds));
+    }
+
+    /**
+     * Input records are only sketched, not forwarded.
+     */
+    private static Function<byte[], byte[]> sketchingProcessor(Sketches.Operator operator) {
+        final JsonCodec.JsonDecoderFunction decoder = new JsonCodec.JsonDecoderFunction();
+        return inputBytes -> {
+            operator.apply(decoder.apply(inputBytes));
+            return null;
+        };
+    }
+
+    private static Function<byte[], byte[]> mergeProcessor(Supplier<Sketches.Sketch> sketchFactory) {
+        return JsonCodec.over(Sketches.merger(sketchFactory));
+    }
+
+    private static Supplier<Sketches.Sketch> sketchFactory() {
+        switch (sketch) {
+            case "distinct":
+                return Sketches.HyperLogLog::new;
+            case "top":
+                return Sketches.HeavyHitters::new;
+            case "quantiles":
+                return Sketches.QuantileSketch::new;
+            default:
+                throw new IllegalArgumentException("Unknown sketch: " + sketch);
+        }
+    }
+
+    private static void parseArgs(String... args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--console":
+                        isConsoleMode = true;
+                        break;
+                    case "--in-queue":
+                        final String arg2 = args[++i];
+                        inQueue = arg2;
+                        break;
+                    case "--out-queue":
+                        final String arg3 = args[++i];
+                        outQueue = arg3;
+                        break;
+                    case "--merge":
+                        isMergeMode = true;
+                        break;
+                    case "--sketch":
+                        sketch = args[++i];
+                        break;
+                    case "--field":
+                        field = args[++i];
+                        break;
+                    case "--group-field":
+                        groupField = args[++i];
+                        break;
+                    case "--publish-interval":
+                        publishIntervalSeconds = Long.parseLong(args[++i]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (sketch == null || (!isMergeMode && field == null) || (!isConsoleMode && (inQueue == null || outQueue == null))) {
+            throw new IllegalArgumentException("Usage: --console  or: --in-queue <rabbitMQ-input-queue> --out-queue <rabbitMQ-output-queue>"
+                    + "  --sketch distinct|top|quantiles  --field <field> [--group-field <field>] [--publish-interval <seconds>]  or: --merge");
+        }
+    }
+}
@@ -1,40 +1,59 @@
 package demo;
 
 import demo.support.XpathBasedParser;
+import demo.transport.Console;
 import demo.transport.RabbitMQ;
 
-import java.io.IOException;
-import java.util.function.Consumer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
+/**
+ * Splits the XML on stdin into records and writes them to console or to RabbitMQ.
+ * "/items/item" records go to the output queue. Additional types are extracted in the same pass using
+ * repeated "--split <xpath-pattern> <rabbitMQ-output-queue>" arguments.
+ */
 public final class DemoUadParserWriteToRabbitMQ {
-    static boolean isFirst = true; // TODO Not thread safe. Fix
 
     public static void main(String... args) throws Exception {
         ProducerMixin producerMixin = ProducerMixin.init(args);
+        final Map<String, String> splits = parseSplits(args);
+        if (producerMixin.outQueue != null) {
+            if (splits.containsKey("/items/item")) {
+                throw new IllegalArgumentException("/items/item records go to --out-queue; do not also --split them");
+            }
+            splits.put("/items/item", producerMixin.outQueue);
+        }
+        if (producerMixin.isConsoleMode) splits.putIfAbsent("/items/item", "console");
 
         if (producerMixin.isConsoleMode) {
             System.err.print("Program started. ");
             System.err.println("Writing to console.");
 
-            parse(in -> {
-                if (!isFirst) System.out.write('\0');
-                try {
-                    System.out.write(in);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                isFirst = false;
-            });
+            final Console.Writer consoleWriter = new Console.Writer('\0');
+            parse(splits, xpathPattern -> (metadata, record) -> consoleWriter.accept(record));
 
         } else {
             final RabbitMQ.Context rabbitContext = new RabbitMQ.Context("localhost");
             try {
-                final RabbitMQ.Writer rabbitMQWriter = new RabbitMQ.Writer(producerMixin.outQueue, rabbitContext);
+                final Map<String, RabbitMQ.Writer> rabbitMQWriters = new LinkedHashMap<>();
+                for (String queue : splits.values()) {
+                    if (!rabbitMQWriters.containsKey(queue)) {
+                        final RabbitMQ.Writer rabbitMQWriter = new RabbitMQ.Writer(queue, rabbitContext);
+                        rabbitMQWriter.stampSendTime(producerMixin.isStampSendTime);
+                        rabbitMQWriters.put(queue, rabbitMQWriter);
+                    }
+                }
 
                 System.err.print("Program started. ");
-                System.err.println("Writing to rabbitMQ: " + producerMixin.outQueue + "@" + rabbitContext.host + ".");
+                System.err.println("Writing to rabbitMQ: " + splits + "@" + rabbitContext.host + ".");
 
-                parse(rabbitMQWriter);
+                parse(splits, xpathPattern -> {
+                    // Routing metadata (type: the matched element name, id) travels in AMQP headers, not in the payload
+                    final RabbitMQ.Writer rabbitMQWriter = rabbitMQWriters.get(splits.get(xpathPattern));
+                    return (metadata, record) -> rabbitMQWriter.accept(RabbitMQ.withHeaders(metadata), record);
+                });
 
             } finally {
                 try {
@@ -48,7 +67,24 @@ public final class DemoUadParserWriteToRabbitMQ {
         System.err.println("Program ended");
     }
 
-    private static void parse(Consumer<byte[]> writer) throws Exception {
-        XpathBasedParser.parseFromSystemIn(writer::accept);
+    private static void parse(Map<String, String> splits, Function<String, BiConsumer<Map<String, String>, byte[]>> writerOfXpath) throws Exception {
+        final XpathBasedParser.Registry registry = new XpathBasedParser.Registry();
+        splits.keySet().forEach(xpathPattern ->
+                registry.register(xpathPattern, XpathBasedParser.ItemParser::new, writerOfXpath.apply(xpathPattern)));
+        new XpathBasedParser(registry).parse(System.in);
+    }
+
+    private static Map<String, String> parseSplits(String... args) {
+        final Map<String, String> splits = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--split")) {
+                if (i + 2 >= args.length) {
+                    throw new IllegalArgumentException("Usage: --split <xpath-pattern> <rabbitMQ-output-queue>");
+                }
+                splits.put(args[i + 1], args[i + 2]);
+                i += 2;
+            }
+        }
+        return splits;
     }
 }
@@ -0,0 +1,125 @@
+package demo;
+
+import demo.support.WindowedAggregator;
+import demo.transport.Console;
+import demo.transport.RabbitMQ;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-aggregates JSON records over time windows, writing one aggregate record per key per window.
+ * E.g. --key-fields type,country --value-field duration --time-field ts --window-seconds 60
+ */
+public class DemoWindowedAggregation {
+
+    private static String inQueue;
+    private static String outQueue;
+    private static boolean isConsoleMode = false;
+    private static List<String> keyFields;
+    private static String valueField;
+    private static String timeField;
+    private static long windowSeconds = 60;
+    private static long slideSeconds = 0;
+    private static long allowedLatenessSeconds = 0;
+    private static long idleSeconds = 0;
+
+    public static void main(String... args) throws Exception {
+        parseArgs(args);
+        final long windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        final long slideMillis = slideSeconds > 0 ? TimeUnit.SECONDS.toMillis(slideSeconds) : windowMillis;
+        final long allowedLatenessMillis = TimeUnit.SECONDS.toMillis(allowedLatenessSeconds);
+        // By default, the watermark follows the clock once input is idle for a slide
+        final long idleMillis = idleSeconds > 0 ? TimeUnit.SECONDS.toMillis(idleSeconds) : slideMillis;
+
+        System.err.print("Program started. ");
+        if (isConsoleMode) {
+            System.err.println("Consuming from stdin. Writing to stdout.");
+            System.err.println("Program will not stop until you close stdin (using ^D/^Z) or break it with ^C.");
+
+            final WindowedAggregator aggregator = new WindowedAggregator(keyFields, valueField, timeField,
+                    windowMillis, slideMillis, allowedLatenessMillis, new Console.Writer('\n'));
+            startTimers(aggregator, idleMillis);
+            new Console.Reader('\n', record -> record, aggregator)
+                    .run();
+            aggregator.flush();
+
+        } else {
+            System.err.println("Consuming from rabbitMQ: " + inQueue + "@localhost . Writing to rabbitMQ: " + outQueue + "@localhost.");
+            System.err.println("Program will stop when input queue is deleted or when you break it with ^C.");
+
+            final RabbitMQ.Context rabbitMQContext = new RabbitMQ.Context("localhost");
+            final RabbitMQ.Context writerContext = new RabbitMQ.Context("localhost");
+            try {
+                final WindowedAggregator aggregator = new WindowedAggregator(keyFields, valueField, timeField,
+                        windowMillis, slideMillis, allowedLatenessMillis, new RabbitMQ.Writer(outQueue, writerContext));
+                startTimers(aggregator, idleMillis);
+                new RabbitMQ.Reader(inQueue, rabbitMQContext, (properties, body) -> body, aggregator)
+                        .run();
+                aggregator.flush();
+            } finally {
+                writerContext.shutdown();
+            }
+        }
+
+        System.err.println("Program ended");
+    }
+
+    /**
+     * Keeps windows flowing when input is idle, and emits the open ones on ^C rather than discarding them.
+     */
+    private static void startTimers(WindowedAggregator aggregator, long idleMillis) {
+        aggregator.advanceWhenIdle(idleMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread(aggregator::flush, "shutdown"));
+    }
+
+    private static void parseArgs(String... args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--console":
+                        isConsoleMode = true;
+                        break;
+                    case "--in-queue":
+                        final String arg2 = args[++i];
+                        inQueue = arg2;
+                        break;
+                    case "--out-queue":
+                        final String arg3 = args[++i];
+                        outQueue = arg3;
+                        break;
+                    case "--key-fields":
+                        keyFields = Arrays.asList(args[++i].split(","));
+                        break;
+                    case "--value-field":
+                        valueField = args[++i];
+                        break;
+                    case "--time-field":
+                        timeField = args[++i];
+                        break;
+                    case "--window-seconds":
+                        windowSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--slide-seconds":
+                        slideSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--allowed-lateness-seconds":
+                        allowedLatenessSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--idle-seconds":
+                        idleSeconds = Long.parseLong(args[++i]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (keyFields == null || (!isConsoleMode && (inQueue == null || outQueue == null))) {
+            throw new IllegalArgumentException("Usage: --console  or: --in-queue <rabbitMQ-input-queue> --out-queue <rabbitMQ-output-queue>"
+                    + "  --key-fields <field,...> [--value-field <field>] [--time-field <field>] [--window-seconds <n>] [--slide-seconds <n>] [--allowed-lateness-seconds <n>] [--idle-seconds <n>]");
+        }
+    }
+}
@@ -1,28 +1,208 @@
 package demo;
 
+import demo.support.Metrics;
+import demo.support.XpathBasedParser;
+import demo.transport.InProcessBroker;
 import demo.transport.RabbitMQ;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Load generator for capacity planning.
+ * Publishes at a fixed (open-loop) rate, from several threads, either generated payloads of a configurable size
+ * distribution or records replayed from a captured sample (NDJSON: one record per line; XML: split by XPath).
+ * Each message carries its intended send time (header {@value RabbitMQ#SEND_TIME_HEADER}, epoch microseconds)
+ * taken from the schedule, not from the clock when actually sent. So a stalled publisher does not hide latency
+ * (coordinated omission) - {@link DemoLatencySink} measures end-to-end latency from it.
+ * With --in-process, runs against an in-process broker stand-in, with the latency sink in the same JVM.
+ */
 public class DemoWriteToRabbitMQ {
     private static String outQueue;
+    private static long ratePerSecond = 1000;
+    private static long durationSeconds = 10;
+    private static int threadCount = 1;
+    private static String payloadSize = "fixed:100";
+    private static String replayFile;
+    private static String replayXpath = "/items/item";
+    private static boolean isInProcess = false;
 
     public static void main(String... args) throws Exception {
         parseArgs(args);
 
-        final RabbitMQ.Context rabbitContext = new RabbitMQ.Context("localhost");
-        final RabbitMQ.Writer rabbitMQWriter = new RabbitMQ.Writer(outQueue, rabbitContext);
+        final List<byte[]> replayRecords = replayFile == null ? null : loadReplayRecords();
+        final PayloadSizes payloadSizes = replayRecords == null ? PayloadSizes.parse(payloadSize) : null;
+
+        final InProcessBroker broker = isInProcess ? new InProcessBroker() : null;
+        final Metrics.Histogram latencyMicros = new Metrics.Histogram();
+        final AtomicLong received = new AtomicLong();
+        final Thread latencySink = isInProcess ? DemoLatencySink.start(outQueue, broker.newContext(), latencyMicros, received) : null;
 
         System.err.print("Program started. ");
-        System.err.println("Writing to rabbitMQ: " + outQueue + "@" + rabbitContext.host + ".");
+        System.err.println("Writing to rabbitMQ: " + outQueue + "@" + (isInProcess ? "in-process" : "localhost") + " at " + ratePerSecond + " msg/s"
+                + " for " + durationSeconds + "s from " + threadCount + " thread(s). Payload: "
+                + (replayRecords != null ? replayRecords.size() + " records replayed from " + replayFile : payloadSize) + ".");
+
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threadCount / ratePerSecond;
+        final long messageCount = ratePerSecond * durationSeconds;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong maxBehindNanos = new AtomicLong();
+        final Metrics.Histogram publishNanos = new Metrics.Histogram();
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long startEpochMicros = Metrics.epochMicros(startNanos);
 
-        for (int i = 0; i < 10; i++) {
-            final String msg = "Message #" + i;
-            System.err.println("Sending to RabbitMQ: " + msg);
-            rabbitMQWriter.accept(msg.getBytes());
-            Thread.sleep(100);
+        final List<Thread> publishers = new ArrayList<>();
+        final List<RabbitMQ.Context> rabbitContexts = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            final RabbitMQ.Context rabbitContext = isInProcess ? broker.newContext() : new RabbitMQ.Context("localhost");
+            rabbitContexts.add(rabbitContext);
+            final RabbitMQ.Writer rabbitMQWriter = new RabbitMQ.Writer(outQueue, rabbitContext);
+            final Thread publisher = new Thread(() -> {
+                final Random random = new Random(threadIndex);
+                // Threads are interleaved within the schedule
+                final long threadOffsetNanos = intervalNanos * threadIndex / threadCount;
+                // The first (messageCount % threadCount) threads send one more message
+                final long threadMessageCount = messageCount / threadCount + (threadIndex < messageCount % threadCount ? 1 : 0);
+                for (long i = 0; i < threadMessageCount; i++) {
+                    final long intendedNanos = startNanos + threadOffsetNanos + i * intervalNanos;
+                    final long aheadNanos = intendedNanos - System.nanoTime();
+                    if (aheadNanos > 0) {
+                        LockSupport.parkNanos(aheadNanos);
+                    } else {
+                        maxBehindNanos.accumulateAndGet(-aheadNanos, Math::max);
+                    }
+                    final byte[] payload = replayRecords != null
+                            ? replayRecords.get((int) ((i * threadCount + threadIndex) % replayRecords.size()))
+                            : generatePayload(i * threadCount + threadIndex, payloadSizes.next(random));
+                    final long intendedEpochMicros = startEpochMicros + (intendedNanos - startNanos) / 1000;
+                    final long publishStartNanos = System.nanoTime();
+                    rabbitMQWriter.accept(
+                            RabbitMQ.withHeaders(Collections.singletonMap(RabbitMQ.SEND_TIME_HEADER, intendedEpochMicros)),
+                            payload);
+                    // A publish call is closed-loop: a slow one delays the next ones, which must be accounted for
+                    publishNanos.recordCorrected(System.nanoTime() - publishStartNanos, intervalNanos);
+                    sent.incrementAndGet();
+                }
+            }, "publisher-" + t);
+            publishers.add(publisher);
+            publisher.start();
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        final double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.println("Sent " + sent.get() + " messages in " + String.format("%.1f", elapsedSeconds) + "s ("
+                + Math.round(sent.get() / elapsedSeconds) + " msg/s). Publishers fell behind schedule by up to "
+                + TimeUnit.NANOSECONDS.toMillis(maxBehindNanos.get()) + "ms.");
+        System.err.println("Publish time (us), corrected for coordinated omission:"
+                + " p50=" + publishNanos.percentile(50) / 1000
+                + " p99=" + publishNanos.percentile(99) / 1000
+                + " p99.9=" + publishNanos.percentile(99.9) / 1000
+                + " max=" + publishNanos.max() / 1000);
+
+        if (isInProcess) {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (received.get() < sent.get() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            DemoLatencySink.printReport(latencyMicros, System.err);
+            // Deleting the queue stops the sink, which shuts its context down
+            rabbitContexts.get(0).channel.queueDelete(outQueue);
+            latencySink.join();
         }
 
+        // Closing the channels sends out what is still buffered; the connection threads then let the JVM exit
+        for (RabbitMQ.Context rabbitContext : rabbitContexts) {
+            rabbitContext.shutdown();
+        }
         System.err.println("Program ended");
-        System.exit(0);
+    }
+
+    /**
+     * JSON record of exactly size bytes (or the minimum size needed for seq).
+     */
+    static byte[] generatePayload(long seq, int size) {
+        final String prefix = "{\"seq\":" + seq + ",\"pad\":\"";
+        final String suffix = "\"}";
+        final byte[] payload = new byte[Math.max(size, prefix.length() + suffix.length())];
+        Arrays.fill(payload, (byte) 'x');
+        System.arraycopy(prefix.getBytes(StandardCharsets.US_ASCII), 0, payload, 0, prefix.length());
+        System.arraycopy(suffix.getBytes(StandardCharsets.US_ASCII), 0, payload, payload.length - suffix.length(), suffix.length());
+        return payload;
+    }
+
+    private static List<byte[]> loadReplayRecords() throws Exception {
+        final List<byte[]> records = new ArrayList<>();
+        final Consumer<byte[]> recordCollector = records::add;
+        if (replayFile.endsWith(".xml")) {
+            try (InputStream in = new FileInputStream(replayFile)) {
+                new XpathBasedParser(new XpathBasedParser.Registry().register(replayXpath, XpathBasedParser.ItemParser::new, recordCollector))
+                        .parse(in);
+            }
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(replayFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) records.add(line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (records.isEmpty()) throw new IllegalArgumentException("No records found in " + replayFile);
+        return records;
+    }
+
+    /**
+     * Payload size distribution: "fixed:SIZE", "uniform:MIN:MAX" or "exponential:MEAN".
+     */
+    static abstract class PayloadSizes {
+        abstract int next(Random random);
+
+        static PayloadSizes parse(String spec) {
+            final String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed": {
+                    final int size = Integer.parseInt(parts[1]);
+                    return new PayloadSizes() {
+                        int next(Random random) {
+                            return size;
+                        }
+                    };
+                }
+                case "uniform": {
+                    final int min = Integer.parseInt(parts[1]);
+                    final int max = Integer.parseInt(parts[2]);
+                    return new PayloadSizes() {
+                        int next(Random random) {
+                            return min + random.nextInt(max - min + 1);
+                        }
+                    };
+                }
+                case "exponential": {
+                    final double mean = Double.parseDouble(parts[1]);
+                    return new PayloadSizes() {
+                        int next(Random random) {
+                            return (int) Math.min(Integer.MAX_VALUE / 2, Math.round(-mean * Math.log(1 - random.nextDouble())));
+                        }
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown payload size distribution: " + spec);
+            }
+        }
     }
 
     private static void parseArgs(String... args) throws Exception {
@@ -34,14 +214,36 @@ public class DemoWriteToRabbitMQ {
                         final String arg3 = args[++i];
                         outQueue = arg3;
                         break;
+                    case "--rate":
+                        ratePerSecond = Long.parseLong(args[++i]);
+                        break;
+                    case "--duration":
+                        durationSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--threads":
+                        threadCount = Integer.parseInt(args[++i]);
+                        break;
+                    case "--payload-size":
+                        payloadSize = args[++i];
+                        break;
+                    case "--replay":
+                        replayFile = args[++i];
+                        break;
+                    case "--replay-xpath":
+                        replayXpath = args[++i];
+                        break;
+                    case "--in-process":
+                        isInProcess = true;
+                        break;
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        if (outQueue == null) {
-            throw new IllegalArgumentException("Usage: --out-queue <rabbitMQ-output-queue>");
+        if (outQueue == null || ratePerSecond <= 0 || threadCount <= 0) {
+            throw new IllegalArgumentException("Usage: --out-queue <rabbitMQ-output-queue> [--rate <msg-per-second>] [--duration <seconds>] [--threads <n>]"
+                    + " [--payload-size fixed:<size> | uniform:<min>:<max> | exponential:<mean>] [--replay <ndjson-or-xml-file> [--replay-xpath <xpath>]] [--in-process]");
         }
     }
 }
@@ -1,26 +1,45 @@
 package demo;
 
+import com.rabbitmq.client.AMQP;
+import demo.support.Deduplicator;
+import demo.support.Metrics;
 import demo.transport.Console;
 import demo.transport.RabbitMQ;
 
+import java.io.File;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 public abstract class ProcessorSkeleton {
 
+    private static final long SPILL_PUBLISH_LATENCY_THRESHOLD_MILLIS = 500;
+
     private static String inQueue;
     private static String outQueue;
     private static String rabbitMqServerHost = "localhost";
     private static boolean isConsoleMode = false;
+    private static long metricsIntervalSeconds = 0;
+    private static String dedupHeader;
+    private static String dedupJsonField;
+    private static String dedupSnapshotFile;
+    private static String spillDir;
+    private static String routeHeader;
+    private static String routeJsonField;
 
     protected final void mainSkeleton(String... args) throws Exception {
         parseArgs(args);
+        if (metricsIntervalSeconds > 0) Metrics.dumpPeriodically(metricsIntervalSeconds);
 
         System.err.print("Program started. ");
         if (isConsoleMode) {
             System.err.println("Consuming from stdin. Writing to stdout.");
             System.err.println("Program will not stop until you close stdin (using ^D/^Z) or break it with ^C.");
 
-            new Console.Reader('\n', processor(), new Console.Writer('\n'))
+            final Deduplicator deduplicator = deduplicator();
+            final Function<byte[], byte[]> processor = deduplicator == null ? processor() : deduplicator.over(processor());
+            new Console.Reader('\n', processor, new Console.Writer('\n'))
                     .run();
 
         } else {
@@ -28,16 +47,62 @@ public abstract class ProcessorSkeleton {
             System.err.println("Program will stop when input queue is deleted or when you break it with ^C.");
 
             final RabbitMQ.Context rabbitMQContext = new RabbitMQ.Context(rabbitMqServerHost);
-            new RabbitMQ.Reader(inQueue, rabbitMQContext, processor(), new RabbitMQ.Writer(outQueue, rabbitMQContext))
+            // Input message headers (record metadata) are forwarded as is with the processor output
+            final Function<byte[], byte[]> processor = processor();
+            final Deduplicator deduplicator = deduplicator();
+            final BiFunction<AMQP.BasicProperties, byte[], byte[]> propertiesAwareProcessor = (properties, body) -> processor.apply(body);
+            new RabbitMQ.Reader(inQueue, rabbitMQContext,
+                    deduplicator == null ? propertiesAwareProcessor : deduplicator.over(propertiesAwareProcessor),
+                    writer(rabbitMQContext))
                     .run();
         }
     }
 
+    /**
+     * @return writer to out queue or, when routing, to queues named out queue + "." + route value
+     */
+    private static BiConsumer<AMQP.BasicProperties, byte[]> writer(RabbitMQ.Context rabbitMQContext) throws Exception {
+        if (routeHeader != null) {
+            return new RabbitMQ.RoutingWriter(rabbitMQContext, RabbitMQ.RoutingWriter.byHeader(routeHeader, outQueue + "."));
+        }
+        if (routeJsonField != null) {
+            return new RabbitMQ.RoutingWriter(rabbitMQContext, RabbitMQ.RoutingWriter.byJsonField(routeJsonField, outQueue + "."));
+        }
+        return spillDir == null
+                ? new RabbitMQ.Writer(outQueue, rabbitMQContext)
+                : new RabbitMQ.SpillingWriter(outQueue, rabbitMQContext, new File(spillDir), SPILL_PUBLISH_LATENCY_THRESHOLD_MILLIS);
+    }
+
+    /**
+     * @return deduplicator configured by command line arguments, or null if none
+     */
+    private Deduplicator deduplicator() throws Exception {
+        if (dedupHeader == null && dedupJsonField == null) return null;
+        final Predicate<String> exactCheck = exactCheck();
+        if (exactCheck == null) {
+            throw new IllegalArgumentException("--dedup-header / --dedup-json-field need an exact check: override exactCheck()");
+        }
+        final Deduplicator deduplicator = new Deduplicator(
+                dedupHeader != null ? Deduplicator.headerKey(dedupHeader) : Deduplicator.jsonFieldKey(dedupJsonField),
+                1_000_000,
+                exactCheck);
+        if (dedupSnapshotFile != null) deduplicator.snapshotPeriodically(new File(dedupSnapshotFile), 60);
+        return deduplicator;
+    }
+
     /**
      * Actual processor logic. To be implemented by subclass.
      */
     protected abstract Function<byte[], byte[]> processor() ;
 
+    /**
+     * Confirms that a record id was really processed before (e.g. a lookup in the target store), when deduplicating.
+     * To be overridden by subclasses supporting deduplication; none by default.
+     */
+    protected Predicate<String> exactCheck() {
+        return null;
+    }
+
     private static void parseArgs(String... args) throws Exception {
         try {
             for (int i = 0; i < args.length; i++) {
@@ -54,14 +119,38 @@ public abstract class ProcessorSkeleton {
                         final String arg3 = args[++i];
                         outQueue = arg3;
                         break;
+                    case "--metrics-interval":
+                        metricsIntervalSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--dedup-header":
+                        dedupHeader = args[++i];
+                        break;
+                    case "--dedup-json-field":
+                        dedupJsonField = args[++i];
+                        break;
+                    case "--dedup-snapshot":
+                        dedupSnapshotFile = args[++i];
+                        break;
+                    case "--spill-dir":
+                        spillDir = args[++i];
+                        break;
+                    case "--route-header":
+                        routeHeader = args[++i];
+                        break;
+                    case "--route-json-field":
+                        routeJsonField = args[++i];
+                        break;
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
+        if (isConsoleMode && dedupHeader != null) {
+            throw new IllegalArgumentException("--dedup-header needs message headers: not available in console mode, use --dedup-json-field");
+        }
         if (!isConsoleMode && (inQueue == null || outQueue == null)) {
-            throw new IllegalArgumentException("Usage: --console  or: --in-queue <rabbitMQ-input-queue> --out-queue <rabbitMQ-output-queue>");
+            throw new IllegalArgumentException("Usage: --console  or: --in-queue <rabbitMQ-input-queue> --out-queue <rabbitMQ-output-queue>  [--metrics-interval <seconds>] [--dedup-header <name> | --dedup-json-field <name> [--dedup-snapshot <file>]] [--spill-dir <dir> | --route-header <name> | --route-json-field <name>]");
         }
     }
 }
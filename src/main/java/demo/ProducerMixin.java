@@ -9,15 +9,21 @@ public final class ProducerMixin {
     public final String outQueue;
     public final String rabbitMqServerHost;
     public final boolean isConsoleMode;
+    /**
+     * Stamp published records with their entry time, for end-to-end age metrics downstream
+     */
+    public final boolean isStampSendTime;
 
-    private ProducerMixin(String outQueue, String rabbitMqServerHost, boolean isConsoleMode) {
+    private ProducerMixin(String outQueue, String rabbitMqServerHost, boolean isConsoleMode, boolean isStampSendTime) {
         this.outQueue = outQueue;
         this.rabbitMqServerHost = rabbitMqServerHost;
         this.isConsoleMode = isConsoleMode;
+        this.isStampSendTime = isStampSendTime;
     }
 
     public static ProducerMixin init(String... args) throws Exception {
         boolean isConsoleMode = false;
+        boolean isStampSendTime = false;
         String outQueue = null;
         try {
             for (int i = 0; i < args.length; i++) {
@@ -30,6 +36,9 @@ public final class ProducerMixin {
                         final String arg3 = args[++i];
                         outQueue = arg3;
                         break;
+                    case "--stamp-send-time":
+                        isStampSendTime = true;
+                        break;
                 }
             }
         } catch (Exception e) {
@@ -37,8 +46,8 @@ public final class ProducerMixin {
         }
 
         if (!isConsoleMode && outQueue == null) {
-            throw new IllegalArgumentException("Usage: --console  or: --out-queue <rabbitMQ-output-queue>");
+            throw new IllegalArgumentException("Usage: --console  or: --out-queue <rabbitMQ-output-queue> [--stamp-send-time]");
         }
-        return new ProducerMixin(outQueue, "localhost", isConsoleMode);
+        return new ProducerMixin(outQueue, "localhost", isConsoleMode, isStampSendTime);
     }
 }
@@ -0,0 +1,80 @@
+package demo.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level parser for the legacy inline header: a first line of comma separated "key:value" pairs
+ * preceding the record content, e.g. "type:item,id:12345\n".
+ * Nothing is copied or allocated: lookups return the range of the value inside the record bytes.
+ */
+public final class InlineHeader {
+
+    public static final long NOT_FOUND = -1L;
+
+    private InlineHeader() {
+    }
+
+    /**
+     * @return index of the '\n' ending the header line, or -1 if there is none
+     */
+    public static int headerEnd(byte[] record) {
+        for (int i = 0; i < record.length; i++) {
+            if (record[i] == '\n') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the value of key in the header line record[0, headerEnd). A trailing '\r' is not part of the value.
+     *
+     * @return value range packed as (start << 32 | end), or {@link #NOT_FOUND}. Unpack with {@link #start(long)} / {@link #end(long)}.
+     */
+    public static long find(byte[] record, int headerEnd, String key) {
+        if (headerEnd > 0 && record[headerEnd - 1] == '\r') headerEnd--;
+        int pairStart = 0;
+        while (pairStart < headerEnd) {
+            int pairEnd = pairStart;
+            while (pairEnd < headerEnd && record[pairEnd] != ',') pairEnd++;
+            final int valueStart = pairStart + key.length() + 1;
+            if (valueStart <= pairEnd && record[valueStart - 1] == ':' && keyMatches(record, pairStart, key)) {
+                return ((long) valueStart << 32) | pairEnd;
+            }
+            pairStart = pairEnd + 1;
+        }
+        return NOT_FOUND;
+    }
+
+    public static int start(long range) {
+        return (int) (range >>> 32);
+    }
+
+    public static int end(long range) {
+        return (int) range;
+    }
+
+    /**
+     * @return true if the value at range (as returned by {@link #find}) equals the ASCII string value
+     */
+    public static boolean valueEquals(byte[] record, long range, String value) {
+        if (range == NOT_FOUND || end(range) - start(range) != value.length()) return false;
+        return keyMatches(record, start(range), value);
+    }
+
+    /**
+     * Convenience for callers that need the value as string - the only allocating method here.
+     *
+     * @return value of key, or null if absent
+     */
+    public static String value(byte[] record, int headerEnd, String key) {
+        final long range = find(record, headerEnd, key);
+        if (range == NOT_FOUND) return null;
+        return new String(record, start(range), end(range) - start(range), StandardCharsets.UTF_8);
+    }
+
+    private static boolean keyMatches(byte[] record, int offset, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (record[offset + i] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+}
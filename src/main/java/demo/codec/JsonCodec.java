@@ -1,5 +1,8 @@
 package demo.codec;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -36,15 +39,36 @@ public class JsonCodec {
         }
     }
 
+    /**
+     * @return extractor of a top level scalar field of a JSON record, as a string, or null if absent or not JSON.
+     * Stops parsing as soon as the field is found.
+     */
+    public static Function<byte[], String> fieldValue(String field) {
+        final JsonFactory jsonFactory = new JsonFactory();
+        return inputBytes -> {
+            try (JsonParser parser = jsonFactory.createParser(inputBytes)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) return null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final boolean isField = field.equals(parser.getCurrentName());
+                    final JsonToken valueToken = parser.nextToken();
+                    if (isField) return valueToken.isScalarValue() ? parser.getValueAsString() : null;
+                    parser.skipChildren();
+                }
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        };
+    }
+
     /**
      * Wraps Processor that gets and returns Map<String, Object> with a JSON encoder/decoder that gets and returns byte array.
+     * A null map returned by the processor gives null bytes (readers drop null results), rather than the JSON "null".
      */
     public static Function<byte[], byte[]> over(Function<Map<String, Object>, Map<String, Object>> processor) {
-        return inputBytes ->
-                new JsonEncoderFunction().apply(
-                        processor.apply(
-                                new JsonDecoderFunction().apply(inputBytes)
-                        )
-                );
+        return inputBytes -> {
+            final Map<String, Object> outputMap = processor.apply(new JsonDecoderFunction().apply(inputBytes));
+            return outputMap == null ? null : new JsonEncoderFunction().apply(outputMap);
+        };
     }
 }
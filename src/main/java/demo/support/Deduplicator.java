@@ -0,0 +1,292 @@
+package demo.support;
+
+import com.rabbitmq.client.AMQP;
+import demo.codec.JsonCodec;
+import demo.transport.RabbitMQ;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Drops records whose id was already seen, e.g. on RabbitMQ redelivery or when re-running an import.
+ * Seen ids are kept in a time-partitioned Bloom filter held off-heap: each partition covers partitionMillis and,
+ * once all partitions are used, the oldest one is cleared and reused. So ids are remembered for at least
+ * (partitions - 1) * partitionMillis, in fixed memory whatever the number of ids.
+ * A filter hit only means "possibly seen"; it is confirmed by the exact check (e.g. a lookup in the target store)
+ * before dropping the record, so unique records are never dropped. The filter only spares the exact check for most
+ * unseen ids: all partitions together are sized for the configured false positive rate.
+ * <p>
+ * A processor wrapped by {@link #over(BiFunction)} returns null for duplicates; readers drop null results.
+ * Ids are marked as seen once the processor returned, so a record whose processing failed is not dropped on redelivery.
+ */
+public class Deduplicator {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final int partitionCount;
+    private final long partitionMillis;
+    private final long bitsPerPartition;
+    private final int hashCount;
+    private final ByteBuffer[] partitions;
+    private final long[] partitionPeriods;
+    private final BiFunction<AMQP.BasicProperties, byte[], String> keyExtractor;
+    private final Predicate<String> exactCheck;
+    // Copy of one partition at a time written by snapshot(), allocated on first snapshot. Guarded by snapshotLock.
+    private final Object snapshotLock = new Object();
+    private ByteBuffer snapshotBuffer;
+
+    /**
+     * @param keyExtractor           extracts the id of a record, null to let the record through
+     * @param expectedIdsPerPartition ids expected within partitionMillis
+     * @param falsePositiveRate      target rate of possible hits for unseen ids, over all partitions
+     * @param exactCheck             confirms that a possibly seen id was really seen
+     */
+    public Deduplicator(
+            BiFunction<AMQP.BasicProperties, byte[], String> keyExtractor,
+            int partitionCount,
+            long partitionMillis,
+            long expectedIdsPerPartition,
+            double falsePositiveRate,
+            Predicate<String> exactCheck
+    ) {
+        this.keyExtractor = keyExtractor;
+        this.exactCheck = exactCheck;
+        this.partitionCount = partitionCount;
+        this.partitionMillis = partitionMillis;
+        // An unseen id is a possible hit if any partition reports it
+        final double partitionFalsePositiveRate = 1 - Math.pow(1 - falsePositiveRate, 1.0 / partitionCount);
+        final double ln2 = Math.log(2);
+        final long bits = (long) Math.ceil(-expectedIdsPerPartition * Math.log(partitionFalsePositiveRate) / (ln2 * ln2));
+        this.bitsPerPartition = Math.min(Math.max(64, (bits + 63) / 64 * 64), (long) Integer.MAX_VALUE / 8 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitsPerPartition / expectedIdsPerPartition * ln2));
+        this.partitions = new ByteBuffer[partitionCount];
+        this.partitionPeriods = new long[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = ByteBuffer.allocateDirect((int) (bitsPerPartition / 8));
+            partitionPeriods[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Remembers ids for 24 to 28 hours, calling the exact check for 0.1% of unseen ids.
+     */
+    public Deduplicator(BiFunction<AMQP.BasicProperties, byte[], String> keyExtractor, long expectedIdsPerHour, Predicate<String> exactCheck) {
+        this(keyExtractor, 7, TimeUnit.HOURS.toMillis(4), expectedIdsPerHour * 4, 0.001, exactCheck);
+    }
+
+    // =================================================================================================
+    // Key extractors
+    // =================================================================================================
+
+    /**
+     * @return extractor of an AMQP header value. Does not touch the record body.
+     */
+    public static BiFunction<AMQP.BasicProperties, byte[], String> headerKey(String header) {
+        return (properties, body) -> RabbitMQ.header(properties, header);
+    }
+
+    /**
+     * @return extractor of a top level field of a JSON record. Stops parsing as soon as the field is found.
+     */
+    public static BiFunction<AMQP.BasicProperties, byte[], String> jsonFieldKey(String field) {
+        final Function<byte[], String> fieldValue = JsonCodec.fieldValue(field);
+        return (properties, body) -> fieldValue.apply(body);
+    }
+
+    // =================================================================================================
+    // Processor wrappers
+    // =================================================================================================
+
+    /**
+     * Wraps processor so that it is only called for records not seen before. Returns null for duplicates.
+     * The id of a record is marked as seen once processor returned; not if it threw.
+     */
+    public BiFunction<AMQP.BasicProperties, byte[], byte[]> over(BiFunction<AMQP.BasicProperties, byte[], byte[]> processor) {
+        return (properties, body) -> {
+            final String id = keyExtractor.apply(properties, body);
+            if (isDuplicate(id)) return null;
+            final byte[] result = processor.apply(properties, body);
+            markSeen(id);
+            return result;
+        };
+    }
+
+    public Function<byte[], byte[]> over(Function<byte[], byte[]> processor) {
+        return body -> {
+            final String id = keyExtractor.apply(null, body);
+            if (isDuplicate(id)) return null;
+            final byte[] result = processor.apply(body);
+            markSeen(id);
+            return result;
+        };
+    }
+
+    /**
+     * @return true if id was seen before: possibly seen according to the filter, and confirmed by the exact check
+     */
+    public boolean isDuplicate(String id) {
+        if (id == null) return false;
+        final long hash1 = Hashing.hash64(id, 0x9E3779B97F4A7C15L);
+        final long hash2 = Hashing.hash64(id, 0xC2B2AE3D27D4EB4FL) | 1;
+        final boolean isPossiblySeen;
+        synchronized (this) {
+            isPossiblySeen = mightContain(hash1, hash2, System.currentTimeMillis() / partitionMillis);
+        }
+        return isPossiblySeen && exactCheck.test(id);
+    }
+
+    /**
+     * Marks id as seen, in the current partition.
+     */
+    public void markSeen(String id) {
+        if (id == null) return;
+        final long hash1 = Hashing.hash64(id, 0x9E3779B97F4A7C15L);
+        final long hash2 = Hashing.hash64(id, 0xC2B2AE3D27D4EB4FL) | 1;
+        synchronized (this) {
+            final long period = System.currentTimeMillis() / partitionMillis;
+            final int current = (int) Math.floorMod(period, (long) partitionCount);
+            if (partitionPeriods[current] != period) {
+                clear(partitions[current]);
+                partitionPeriods[current] = period;
+            }
+            put(partitions[current], hash1, hash2);
+        }
+    }
+
+    private boolean mightContain(long hash1, long hash2, long period) {
+        for (int i = 0; i < partitionCount; i++) {
+            if (partitionPeriods[i] > period - partitionCount && contains(partitions[i], hash1, hash2)) return true;
+        }
+        return false;
+    }
+
+    private boolean contains(ByteBuffer bits, long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = Math.floorMod(hash1 + i * hash2, bitsPerPartition);
+            final int wordOffset = (int) (bit >>> 6) << 3;
+            if ((bits.getLong(wordOffset) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void put(ByteBuffer bits, long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = Math.floorMod(hash1 + i * hash2, bitsPerPartition);
+            final int wordOffset = (int) (bit >>> 6) << 3;
+            bits.putLong(wordOffset, bits.getLong(wordOffset) | (1L << bit));
+        }
+    }
+
+    private static void clear(ByteBuffer bits) {
+        for (int offset = 0; offset < bits.capacity(); offset += 8) {
+            bits.putLong(offset, 0L);
+        }
+    }
+
+    // =================================================================================================
+    // Snapshots
+    // =================================================================================================
+
+    /**
+     * Atomically replaces file with the current filter state.
+     * Partitions are copied one at a time into a single reused buffer, the filter only being locked during each copy,
+     * not while written out.
+     */
+    public void snapshot(File file) throws IOException {
+        synchronized (snapshotLock) {
+            if (snapshotBuffer == null) snapshotBuffer = ByteBuffer.allocateDirect(partitions[0].capacity());
+            final long[] periods = new long[partitionCount];
+            final File tmpFile = new File(file.getPath() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = headerBytes();
+                for (int i = 0; i < partitionCount; i++) {
+                    synchronized (this) {
+                        periods[i] = partitionPeriods[i];
+                        final ByteBuffer bits = partitions[i].duplicate();
+                        bits.clear();
+                        snapshotBuffer.clear();
+                        snapshotBuffer.put(bits);
+                    }
+                    snapshotBuffer.flip();
+                    while (snapshotBuffer.hasRemaining()) position += channel.write(snapshotBuffer, position);
+                }
+                // Header last: the periods are those of the partition copies
+                final ByteBuffer header = ByteBuffer.allocate(headerBytes());
+                header.putInt(SNAPSHOT_VERSION).putInt(partitionCount).putLong(partitionMillis).putLong(bitsPerPartition).putInt(hashCount);
+                for (long period : periods) {
+                    header.putLong(period);
+                }
+                header.flip();
+                while (header.hasRemaining()) channel.write(header, header.position());
+                channel.force(true);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private int headerBytes() {
+        return 4 + 4 + 8 + 8 + 4 + 8 * partitionCount;
+    }
+
+    /**
+     * Restores filter state from a snapshot taken by a deduplicator with the same configuration.
+     * Does nothing if file does not exist.
+     */
+    public synchronized void restore(File file) throws IOException {
+        if (!file.exists()) return;
+        try (FileInputStream fis = new FileInputStream(file);
+             DataInputStream in = new DataInputStream(fis)) {
+            if (in.readInt() != SNAPSHOT_VERSION || in.readInt() != partitionCount || in.readLong() != partitionMillis
+                    || in.readLong() != bitsPerPartition || in.readInt() != hashCount) {
+                throw new IOException("Snapshot " + file + " does not match deduplicator configuration");
+            }
+            for (int i = 0; i < partitionCount; i++) {
+                partitionPeriods[i] = in.readLong();
+            }
+            final FileChannel channel = fis.getChannel();
+            long position = headerBytes();
+            for (ByteBuffer partition : partitions) {
+                final ByteBuffer bits = partition.duplicate();
+                bits.clear();
+                while (bits.hasRemaining()) {
+                    final int read = channel.read(bits, position);
+                    if (read < 0) throw new IOException("Snapshot " + file + " truncated");
+                    position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores from file (if any), then snapshots to file every periodSeconds, in a background thread.
+     */
+    public void snapshotPeriodically(File file, long periodSeconds) throws IOException {
+        restore(file);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "dedup-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,29 @@
+package demo.support;
+
+/**
+ * 64-bit string hashing shared by the hash based structures (Bloom filter, sketches, aggregate maps):
+ * FNV-1a over the chars, with a murmur3 finalizer for better bit dispersion. Allocation free.
+ */
+public class Hashing {
+
+    public static long hash64(String value) {
+        return hash64(value, 0);
+    }
+
+    /**
+     * @param seed gives independent hashes of the same value, e.g. for double hashing
+     */
+    public static long hash64(String value, long seed) {
+        long hash = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,381 @@
+package demo.support;
+
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Pipeline instrumentation: per-stage counters, gauges and latency histograms.
+ * Recording is lock-free and allocation-free (atomic increments only), so it stays on in production.
+ * Each stage is exposed as a JMX MXBean named "demo:type=Stage,name=(stage name)" and can be dumped to stderr periodically.
+ */
+public class Metrics {
+
+    private static final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper;
+    private static final long EPOCH_MICROS_BASE = System.currentTimeMillis() * 1000;
+    private static final long NANOS_BASE = System.nanoTime();
+
+    /**
+     * @return current epoch time, in microseconds
+     */
+    public static long epochMicros() {
+        return epochMicros(System.nanoTime());
+    }
+
+    /**
+     * @return epoch time, in microseconds, of a System.nanoTime() value. Wall clock precision is only used once, at startup.
+     */
+    public static long epochMicros(long nanoTime) {
+        return EPOCH_MICROS_BASE + (nanoTime - NANOS_BASE) / 1000;
+    }
+
+    /**
+     * @return stage with given name, created (and registered in JMX) on first use
+     */
+    public static Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    /**
+     * Starts dumping all stages to stderr every periodSeconds. Does nothing if already started.
+     */
+    public static synchronized void dumpPeriodically(long periodSeconds) {
+        if (dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics-dumper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(System.err), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static void dump(PrintStream out) {
+        for (Stage stage : new TreeMap<>(stages).values()) {
+            out.println(stage);
+        }
+    }
+
+    // =================================================================================================
+
+    public interface StageMXBean {
+        long getRecordsIn();
+
+        long getRecordsOut();
+
+        long getErrors();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getInFlight();
+
+        long getQueueDepth();
+
+        long getProcessTimeP50Micros();
+
+        long getProcessTimeP99Micros();
+
+        long getProcessTimeMaxMicros();
+
+        long getPublishTimeP50Micros();
+
+        long getPublishTimeP99Micros();
+
+        long getPublishTimeMaxMicros();
+
+        long getAgeP50Millis();
+
+        long getAgeP99Millis();
+
+        long getAgeMaxMillis();
+    }
+
+    public static final class Stage implements StageMXBean {
+        public final String name;
+        public final AtomicLong recordsIn = new AtomicLong();
+        public final AtomicLong recordsOut = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong bytesIn = new AtomicLong();
+        public final AtomicLong bytesOut = new AtomicLong();
+        public final AtomicLong inFlight = new AtomicLong();
+        /**
+         * Processor time, in nanoseconds
+         */
+        public final Histogram processTime = new Histogram();
+        /**
+         * Publish (write) time, in nanoseconds
+         */
+        public final Histogram publishTime = new Histogram();
+        /**
+         * End-to-end age of consumed records (now - entry time header, else AMQP timestamp), in microseconds
+         */
+        public final Histogram age = new Histogram();
+        private volatile LongSupplier queueDepth = () -> 0;
+
+        private Stage(String name) {
+            this.name = name;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("demo:type=Stage,name=" + ObjectName.quote(name)));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void queueDepthGauge(LongSupplier queueDepth) {
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * Records an incoming record and marks it in flight.
+         *
+         * @return start time, to be passed to {@link #processed(long)}
+         */
+        public long received(int bytes) {
+            recordsIn.incrementAndGet();
+            bytesIn.addAndGet(bytes);
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the end of processing of a record returned by {@link #received(int)}, successful or not.
+         */
+        public void processed(long startNanos) {
+            processTime.record(System.nanoTime() - startNanos);
+            inFlight.decrementAndGet();
+        }
+
+        /**
+         * Records a published record.
+         */
+        public void published(int bytes, long startNanos) {
+            publishTime.record(System.nanoTime() - startNanos);
+            recordsOut.incrementAndGet();
+            bytesOut.addAndGet(bytes);
+        }
+
+        @Override
+        public long getRecordsIn() {
+            return recordsIn.get();
+        }
+
+        @Override
+        public long getRecordsOut() {
+            return recordsOut.get();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.get();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.get();
+        }
+
+        @Override
+        public long getQueueDepth() {
+            return queueDepth.getAsLong();
+        }
+
+        @Override
+        public long getProcessTimeP50Micros() {
+            return processTime.percentile(50) / 1000;
+        }
+
+        @Override
+        public long getProcessTimeP99Micros() {
+            return processTime.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getProcessTimeMaxMicros() {
+            return processTime.max() / 1000;
+        }
+
+        @Override
+        public long getPublishTimeP50Micros() {
+            return publishTime.percentile(50) / 1000;
+        }
+
+        @Override
+        public long getPublishTimeP99Micros() {
+            return publishTime.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getPublishTimeMaxMicros() {
+            return publishTime.max() / 1000;
+        }
+
+        @Override
+        public long getAgeP50Millis() {
+            return age.percentile(50) / 1000;
+        }
+
+        @Override
+        public long getAgeP99Millis() {
+            return age.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getAgeMaxMillis() {
+            return age.max() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return name
+                    + " in=" + recordsIn.get() + " out=" + recordsOut.get() + " errors=" + errors.get()
+                    + " bytesIn=" + bytesIn.get() + " bytesOut=" + bytesOut.get()
+                    + " inFlight=" + inFlight.get() + " queueDepth=" + getQueueDepth()
+                    + " processUs(p50/p99/max)=" + getProcessTimeP50Micros() + "/" + getProcessTimeP99Micros() + "/" + getProcessTimeMaxMicros()
+                    + " publishUs(p50/p99/max)=" + getPublishTimeP50Micros() + "/" + getPublishTimeP99Micros() + "/" + getPublishTimeMaxMicros()
+                    + " ageMs(p50/p99/max)=" + getAgeP50Millis() + "/" + getAgeP99Millis() + "/" + getAgeMaxMillis();
+        }
+    }
+
+    // =================================================================================================
+
+    /**
+     * Log-linear histogram of non-negative longs: each power of two is split into 2^subBucketBits buckets,
+     * giving values within 2^-subBucketBits precision over the whole long range in a fixed array:
+     * by default 7 bits, i.e. within 0.8% in 58KB.
+     */
+    public static final class Histogram {
+        public static final int DEFAULT_SUB_BUCKET_BITS = 7;
+
+        private final int subBucketBits;
+        private final int subBuckets;
+        private final int buckets;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public Histogram() {
+            this(DEFAULT_SUB_BUCKET_BITS);
+        }
+
+        /**
+         * @param subBucketBits precision: values are recorded within 2^-subBucketBits (1 to 16)
+         */
+        public Histogram(int subBucketBits) {
+            if (subBucketBits < 1 || subBucketBits > 16) {
+                throw new IllegalArgumentException("subBucketBits must be within [1, 16]: " + subBucketBits);
+            }
+            this.subBucketBits = subBucketBits;
+            this.subBuckets = 1 << subBucketBits;
+            this.buckets = (64 - subBucketBits + 1) * subBuckets;
+            this.counts = new AtomicLongArray(buckets);
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        /**
+         * Records value from a closed-loop measurement expected every expectedInterval, correcting for coordinated omission:
+         * a value larger than the interval means the measurements that should have happened meanwhile were skipped,
+         * so they are recorded too, with the latencies they would have seen (value - interval, value - 2 * interval, ...).
+         */
+        public void recordCorrected(long value, long expectedInterval) {
+            record(value);
+            if (expectedInterval <= 0) return;
+            for (long missedValue = value - expectedInterval; missedValue >= expectedInterval; missedValue -= expectedInterval) {
+                record(missedValue);
+            }
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given percentile (0-100), capped by max. 0 if empty.
+         */
+        public long percentile(double percentile) {
+            final long total = count.get();
+            if (total == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) return Math.min(upperBoundOf(bucket), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * Adds all values recorded in other, of the same precision, to this histogram.
+         */
+        public void add(Histogram other) {
+            if (other.subBucketBits != subBucketBits) {
+                throw new IllegalArgumentException("Histogram precisions differ: " + other.subBucketBits + " vs " + subBucketBits + " bits");
+            }
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                counts.addAndGet(bucket, other.counts.get(bucket));
+            }
+            count.addAndGet(other.count.get());
+            final long otherMax = other.max.get();
+            long currentMax = max.get();
+            while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+                currentMax = max.get();
+            }
+        }
+
+        public void reset() {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                counts.set(bucket, 0);
+            }
+            count.set(0);
+            max.set(0);
+        }
+
+        int bucketOf(long value) {
+            if (value < subBuckets) return (int) value;
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+            return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+        }
+
+        long upperBoundOf(int bucket) {
+            if (bucket < subBuckets) return bucket;
+            final int exponent = bucket / subBuckets + subBucketBits - 1;
+            final long subBucket = bucket % subBuckets;
+            final long lowerBound = (1L << exponent) + (subBucket << (exponent - subBucketBits));
+            return lowerBound + (1L << (exponent - subBucketBits)) - 1;
+        }
+    }
+}
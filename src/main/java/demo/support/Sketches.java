@@ -0,0 +1,697 @@
+package demo.support;
+
+import demo.codec.JsonCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Approximate analytics in fixed memory: distinct counts ({@link HyperLogLog}), heavy hitters ({@link HeavyHitters})
+ * and quantiles ({@link QuantileSketch}). Sketches of the same configuration merge, so each instance of a processor
+ * sketches its share of the stream and publishes its serialized state periodically ({@link Operator}),
+ * and a downstream {@link #merger(Supplier)} combines the states of all instances.
+ * <p>
+ * Published sketch record (JSON):
+ * {"group":..,"field":..,"intervalStart":..,"intervalEnd":..,"summary":{(estimates)},"state":(base64 sketch state)}
+ */
+public class Sketches {
+
+    public interface Sketch {
+        void add(String value);
+
+        /**
+         * Adds the values of a sketch of the same type and configuration, given as serialized by {@link #serialize()}.
+         *
+         * @throws IllegalArgumentException if the serialized sketch does not match this one
+         */
+        void merge(byte[] serializedSketch);
+
+        byte[] serialize();
+
+        /**
+         * @return current estimates, as JSON-friendly values
+         */
+        Map<String, Object> summary();
+    }
+
+    // =================================================================================================
+    // Pipeline operators
+    // =================================================================================================
+
+    /**
+     * Pass-through JSON processor (see {@link JsonCodec#over(Function)}) sketching one field of the records,
+     * with one sketch per value of an optional group field. Memory is fixed per group.
+     * Records are sketched per interval of intervalMillis, aligned on multiples of intervalMillis (wall clock), so that
+     * sketches of the same interval from all instances carry the same bounds and merge.
+     * Closing stops the periodic publishing.
+     */
+    public static final class Operator implements Function<Map<String, Object>, Map<String, Object>>, AutoCloseable {
+        // Leaves time for records of the interval still in flight in apply() when the interval ends
+        private static final long PUBLISH_DELAY_MILLIS = 100;
+
+        private final String field;
+        private final String groupField;
+        private final Supplier<? extends Sketch> sketchFactory;
+        private final long intervalMillis;
+        // Sketches by group, by interval start. Usually only the current interval, and the previous one until published.
+        private final TreeMap<Long, Map<String, Sketch>> intervals = new TreeMap<>();
+        private long currentIntervalStart = Long.MIN_VALUE;
+        private Map<String, Sketch> currentSketches;
+        private ScheduledExecutorService publisher;
+
+        /**
+         * @param groupField     field whose values get separate sketches, or null for a single sketch
+         * @param intervalMillis length of the intervals sketches are published for
+         */
+        public Operator(String field, String groupField, Supplier<? extends Sketch> sketchFactory, long intervalMillis) {
+            this.field = field;
+            this.groupField = groupField;
+            this.sketchFactory = sketchFactory;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public synchronized Map<String, Object> apply(Map<String, Object> record) {
+            final Object value = record.get(field);
+            if (value != null) {
+                final long intervalStart = intervalStartOf(System.currentTimeMillis());
+                if (intervalStart != currentIntervalStart) {
+                    currentIntervalStart = intervalStart;
+                    currentSketches = intervals.computeIfAbsent(intervalStart, start -> new HashMap<>());
+                }
+                final String group = groupField == null ? "" : String.valueOf(record.get(groupField));
+                currentSketches.computeIfAbsent(group, g -> sketchFactory.get()).add(String.valueOf(value));
+            }
+            return record;
+        }
+
+        /**
+         * Writes one sketch record per group for each ended interval not published yet.
+         */
+        public void publish(Consumer<byte[]> recordWriter) {
+            publishBefore(intervalStartOf(System.currentTimeMillis()), recordWriter);
+        }
+
+        /**
+         * Writes one sketch record per group for all intervals not published yet, including the current one,
+         * e.g. at end of input.
+         */
+        public void flush(Consumer<byte[]> recordWriter) {
+            publishBefore(Long.MAX_VALUE, recordWriter);
+        }
+
+        /**
+         * Publishes after the end of every interval, in a background thread, until closed.
+         * Replaces an earlier periodic publishing.
+         */
+        public void publishPeriodically(Consumer<byte[]> recordWriter) {
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "sketch-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final ScheduledExecutorService replaced;
+            synchronized (this) {
+                replaced = publisher;
+                publisher = scheduler;
+            }
+            if (replaced != null) replaced.shutdown();
+            final long now = System.currentTimeMillis();
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    publish(recordWriter);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, intervalStartOf(now) + intervalMillis - now + PUBLISH_DELAY_MILLIS, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stops the periodic publishing, waiting for a publish in progress: the record writer may then be used by
+         * the caller, e.g. to {@link #flush(Consumer)}, without racing the publisher thread.
+         */
+        @Override
+        public void close() {
+            final ScheduledExecutorService stopped;
+            synchronized (this) {
+                stopped = publisher;
+                publisher = null;
+            }
+            if (stopped == null) return;
+            stopped.shutdown();
+            try {
+                if (!stopped.awaitTermination(10, TimeUnit.SECONDS)) System.err.println("Sketch publisher did not stop");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private long intervalStartOf(long timeMillis) {
+            return timeMillis - Math.floorMod(timeMillis, intervalMillis);
+        }
+
+        private void publishBefore(long intervalStartLimit, Consumer<byte[]> recordWriter) {
+            final Map<Long, Map<String, Sketch>> published;
+            synchronized (this) {
+                final Map<Long, Map<String, Sketch>> ended = intervals.headMap(intervalStartLimit);
+                published = new TreeMap<>(ended);
+                ended.clear();
+                if (!intervals.containsKey(currentIntervalStart)) {
+                    currentIntervalStart = Long.MIN_VALUE;
+                    currentSketches = null;
+                }
+            }
+            final JsonCodec.JsonEncoderFunction encoder = new JsonCodec.JsonEncoderFunction();
+            for (Map.Entry<Long, Map<String, Sketch>> interval : published.entrySet()) {
+                for (Map.Entry<String, Sketch> groupSketch : interval.getValue().entrySet()) {
+                    final Map<String, Object> sketchRecord = new LinkedHashMap<>();
+                    sketchRecord.put("group", groupSketch.getKey());
+                    sketchRecord.put("field", field);
+                    sketchRecord.put("intervalStart", interval.getKey());
+                    sketchRecord.put("intervalEnd", interval.getKey() + intervalMillis);
+                    sketchRecord.put("summary", groupSketch.getValue().summary());
+                    sketchRecord.put("state", Base64.getEncoder().encodeToString(groupSketch.getValue().serialize()));
+                    recordWriter.accept(encoder.apply(sketchRecord));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return JSON processor merging sketch records published by {@link Operator}s (e.g. one per instance):
+     * returns each record with summary and state replaced by the merge of all records seen for the same
+     * group, field and interval start (aligned by the operators). Keeps the most recent 1024 merged sketches.
+     * Returns null for records that are not sketch records; {@link JsonCodec#over(Function)} drops them.
+     * <p>
+     * Merged records are cumulative, not final: one is returned per input record, and how many instances publish
+     * is not known here. The latest merged record of a group, field and interval start supersedes the earlier ones,
+     * so consumers keep only the latest (e.g. upsert by those three fields).
+     */
+    public static Function<Map<String, Object>, Map<String, Object>> merger(Supplier<? extends Sketch> sketchFactory) {
+        final Map<MergeKey, Sketch> merged = new LinkedHashMap<MergeKey, Sketch>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MergeKey, Sketch> eldest) {
+                return size() > 1024;
+            }
+        };
+        return record -> {
+            final Object state = record.get("state");
+            if (state == null) return null;
+            final MergeKey key = new MergeKey(record.get("group"), record.get("field"), record.get("intervalStart"));
+            final Map<String, Object> mergedRecord = new LinkedHashMap<>(record);
+            synchronized (merged) {
+                final Sketch sketch = merged.computeIfAbsent(key, k -> sketchFactory.get());
+                sketch.merge(Base64.getDecoder().decode(state.toString()));
+                mergedRecord.put("summary", sketch.summary());
+                mergedRecord.put("state", Base64.getEncoder().encodeToString(sketch.serialize()));
+            }
+            return mergedRecord;
+        };
+    }
+
+    private static final class MergeKey {
+        private final Object group;
+        private final Object field;
+        private final Object intervalStart;
+
+        MergeKey(Object group, Object field, Object intervalStart) {
+            this.group = group;
+            this.field = field;
+            this.intervalStart = intervalStart;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof MergeKey)) return false;
+            final MergeKey key = (MergeKey) other;
+            return Objects.equals(group, key.group) && Objects.equals(field, key.field) && Objects.equals(intervalStart, key.intervalStart);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(group, field, intervalStart);
+        }
+    }
+
+    // =================================================================================================
+    // Sketches
+    // =================================================================================================
+
+    /**
+     * Distinct count estimate. 2^precision one-byte registers; standard error ~1.04 / sqrt(2^precision)
+     * (precision 14: 16KB, 0.8%).
+     */
+    public static final class HyperLogLog implements Sketch {
+        private static final byte TYPE = 'H';
+
+        private final int precision;
+        private final byte[] registers;
+
+        public HyperLogLog(int precision) {
+            if (precision < 4 || precision > 18) throw new IllegalArgumentException("Precision must be within 4..18: " + precision);
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        public HyperLogLog() {
+            this(14);
+        }
+
+        @Override
+        public void add(String value) {
+            addHash(Hashing.hash64(value));
+        }
+
+        public void addHash(long hash) {
+            final int register = (int) (hash >>> (64 - precision));
+            // Leading zeros of the remaining bits, with a sentinel bit so the rank is at most 64 - precision + 1
+            final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+            if (rank > registers[register]) registers[register] = rank;
+        }
+
+        public long estimate() {
+            final int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) zeros++;
+            }
+            final double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+            final double estimate = alpha * m * m / sum;
+            // Small range correction: linear counting
+            if (estimate <= 2.5 * m && zeros > 0) return Math.round(m * Math.log((double) m / zeros));
+            return Math.round(estimate);
+        }
+
+        @Override
+        public void merge(byte[] serializedSketch) {
+            if (serializedSketch.length != 2 + registers.length || serializedSketch[0] != TYPE || serializedSketch[1] != precision) {
+                throw new IllegalArgumentException("Not a HyperLogLog of precision " + precision);
+            }
+            for (int i = 0; i < registers.length; i++) {
+                if (serializedSketch[2 + i] > registers[i]) registers[i] = serializedSketch[2 + i];
+            }
+        }
+
+        @Override
+        public byte[] serialize() {
+            final byte[] serialized = new byte[2 + registers.length];
+            serialized[0] = TYPE;
+            serialized[1] = (byte) precision;
+            System.arraycopy(registers, 0, serialized, 2, registers.length);
+            return serialized;
+        }
+
+        @Override
+        public Map<String, Object> summary() {
+            final Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("distinct", estimate());
+            return summary;
+        }
+    }
+
+    /**
+     * Most frequent values: a Count-Min sketch (depth rows of width counters) estimates the count of every value,
+     * and a min-heap keeps the k values with the highest estimates. Estimates may exceed true counts by
+     * ~ 2 * total / width, with probability 1 - 0.5^depth.
+     */
+    public static final class HeavyHitters implements Sketch {
+        private static final byte TYPE = 'C';
+
+        private final int k;
+        private final int width;
+        private final int depth;
+        private final long[] counters;
+        private long total;
+        // Min-heap of the top k values by estimated count, with the heap position of each value
+        private final String[] heapValues;
+        private final long[] heapCounts;
+        private int heapSize;
+        private final Map<String, Integer> heapPositions;
+
+        public HeavyHitters(int k, int width, int depth) {
+            this.k = k;
+            this.width = width;
+            this.depth = depth;
+            this.counters = new long[width * depth];
+            this.heapValues = new String[k];
+            this.heapCounts = new long[k];
+            this.heapPositions = new HashMap<>(k * 2);
+        }
+
+        /**
+         * Top 100, in 80KB of counters.
+         */
+        public HeavyHitters() {
+            this(100, 2048, 5);
+        }
+
+        @Override
+        public void add(String value) {
+            add(value, 1);
+        }
+
+        public void add(String value, long count) {
+            final long hash = Hashing.hash64(value);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                final int index = row * width + counterIndex(hash, row);
+                counters[index] += count;
+                estimate = Math.min(estimate, counters[index]);
+            }
+            total += count;
+            offer(value, estimate);
+        }
+
+        public long estimate(String value) {
+            final long hash = Hashing.hash64(value);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, counters[row * width + counterIndex(hash, row)]);
+            }
+            return estimate;
+        }
+
+        /**
+         * @return top values, by descending estimated count
+         */
+        public List<Map.Entry<String, Long>> top() {
+            final List<Map.Entry<String, Long>> top = new ArrayList<>(heapSize);
+            for (int i = 0; i < heapSize; i++) {
+                top.add(new HashMap.SimpleImmutableEntry<>(heapValues[i], heapCounts[i]));
+            }
+            top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            return top;
+        }
+
+        private int counterIndex(long hash, int row) {
+            // Kirsch-Mitzenmacher: row hashes derived from the two halves of one 64-bit hash
+            return Math.floorMod((int) hash + row * (int) (hash >>> 32), width);
+        }
+
+        private void offer(String value, long estimate) {
+            final Integer position = heapPositions.get(value);
+            if (position != null) {
+                // Counts only grow, so the value can only move down a min-heap
+                heapCounts[position] = estimate;
+                siftDown(position);
+            } else if (heapSize < k) {
+                heapValues[heapSize] = value;
+                heapCounts[heapSize] = estimate;
+                heapPositions.put(value, heapSize);
+                siftUp(heapSize++);
+            } else if (estimate > heapCounts[0]) {
+                heapPositions.remove(heapValues[0]);
+                heapValues[0] = value;
+                heapCounts[0] = estimate;
+                heapPositions.put(value, 0);
+                siftDown(0);
+            }
+        }
+
+        private void siftUp(int position) {
+            while (position > 0) {
+                final int parent = (position - 1) / 2;
+                if (heapCounts[parent] <= heapCounts[position]) return;
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            while (true) {
+                final int left = position * 2 + 1;
+                if (left >= heapSize) return;
+                final int smallest = left + 1 < heapSize && heapCounts[left + 1] < heapCounts[left] ? left + 1 : left;
+                if (heapCounts[position] <= heapCounts[smallest]) return;
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final String value = heapValues[i];
+            heapValues[i] = heapValues[j];
+            heapValues[j] = value;
+            final long count = heapCounts[i];
+            heapCounts[i] = heapCounts[j];
+            heapCounts[j] = count;
+            heapPositions.put(heapValues[i], i);
+            heapPositions.put(heapValues[j], j);
+        }
+
+        @Override
+        public void merge(byte[] serializedSketch) {
+            try {
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(serializedSketch));
+                if (in.readByte() != TYPE || in.readInt() != k || in.readInt() != width || in.readInt() != depth) {
+                    throw new IllegalArgumentException("Not a HeavyHitters of k=" + k + " width=" + width + " depth=" + depth);
+                }
+                total += in.readLong();
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] += in.readLong();
+                }
+                // Candidates are the top values of both sketches, re-estimated on the merged counters
+                final List<String> candidates = new ArrayList<>(Arrays.asList(heapValues).subList(0, heapSize));
+                final int otherHeapSize = in.readInt();
+                for (int i = 0; i < otherHeapSize; i++) {
+                    final String value = in.readUTF();
+                    in.readLong();
+                    if (!heapPositions.containsKey(value)) candidates.add(value);
+                }
+                heapPositions.clear();
+                heapSize = 0;
+                for (String candidate : candidates) {
+                    offer(candidate, estimate(candidate));
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Truncated HeavyHitters", e);
+            }
+        }
+
+        @Override
+        public byte[] serialize() {
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream(17 + counters.length * 8);
+                final DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(TYPE);
+                out.writeInt(k);
+                out.writeInt(width);
+                out.writeInt(depth);
+                out.writeLong(total);
+                for (long counter : counters) {
+                    out.writeLong(counter);
+                }
+                out.writeInt(heapSize);
+                for (int i = 0; i < heapSize; i++) {
+                    out.writeUTF(heapValues[i]);
+                    out.writeLong(heapCounts[i]);
+                }
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Map<String, Object> summary() {
+            final Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("total", total);
+            final List<Map<String, Object>> top = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : top()) {
+                final Map<String, Object> hitter = new LinkedHashMap<>();
+                hitter.put("value", entry.getKey());
+                hitter.put("count", entry.getValue());
+                top.add(hitter);
+            }
+            summary.put("top", top);
+            return summary;
+        }
+    }
+
+    /**
+     * Quantiles of positive numbers with bounded relative error (DDSketch): values are counted in logarithmic buckets
+     * of ratio (1 + relativeAccuracy) / (1 - relativeAccuracy). At most maxBuckets buckets are kept; beyond that the
+     * lowest buckets are collapsed, losing accuracy on the smallest values first. Values &lt;= 0 are counted as 0.
+     * Non numeric values are ignored.
+     */
+    public static final class QuantileSketch implements Sketch {
+        private static final byte TYPE = 'Q';
+        private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+        private final double relativeAccuracy;
+        private final double gamma;
+        private final double logGamma;
+        private final long[] buckets;
+        private int offset; // index of buckets[0]
+        private boolean hasBuckets;
+        private long zeroCount;
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+            this.relativeAccuracy = relativeAccuracy;
+            this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+            this.logGamma = Math.log(gamma);
+            this.buckets = new long[maxBuckets];
+        }
+
+        /**
+         * 1% relative error, in 16KB of buckets (covers values spanning ~17 orders of magnitude).
+         */
+        public QuantileSketch() {
+            this(0.01, 2048);
+        }
+
+        @Override
+        public void add(String value) {
+            try {
+                add(Double.parseDouble(value));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        public void add(double value) {
+            if (Double.isNaN(value)) return;
+            if (value < MIN_INDEXABLE_VALUE) {
+                zeroCount++;
+            } else {
+                addToBucket((int) Math.ceil(Math.log(value) / logGamma), 1);
+            }
+            count++;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        private void addToBucket(int index, long bucketCount) {
+            if (!hasBuckets) {
+                offset = index - buckets.length / 2;
+                hasBuckets = true;
+            }
+            if (index < offset) {
+                buckets[0] += bucketCount;
+                return;
+            }
+            final int shift = index - (offset + buckets.length - 1);
+            if (shift > 0) {
+                // Slide the bucket window up, collapsing the lowest buckets into the new lowest one
+                long collapsed = 0;
+                for (int i = 0; i < Math.min(shift, buckets.length); i++) {
+                    collapsed += buckets[i];
+                }
+                if (shift < buckets.length) {
+                    System.arraycopy(buckets, shift, buckets, 0, buckets.length - shift);
+                    Arrays.fill(buckets, buckets.length - shift, buckets.length, 0);
+                } else {
+                    Arrays.fill(buckets, 0);
+                }
+                buckets[0] += collapsed;
+                offset += shift;
+            }
+            buckets[index - offset] += bucketCount;
+        }
+
+        /**
+         * @return estimate of the value at quantile (0-1), within relativeAccuracy. NaN if empty.
+         */
+        public double quantile(double quantile) {
+            if (count == 0) return Double.NaN;
+            final long rank = (long) (quantile * (count - 1));
+            if (rank < zeroCount) return Math.max(0, min);
+            long seen = zeroCount;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen > rank) {
+                    final double estimate = 2 * Math.pow(gamma, offset + i) / (gamma + 1);
+                    return Math.min(Math.max(estimate, min), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public void merge(byte[] serializedSketch) {
+            try {
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(serializedSketch));
+                if (in.readByte() != TYPE || in.readDouble() != relativeAccuracy || in.readInt() != buckets.length) {
+                    throw new IllegalArgumentException("Not a QuantileSketch of accuracy " + relativeAccuracy + " and " + buckets.length + " buckets");
+                }
+                zeroCount += in.readLong();
+                count += in.readLong();
+                min = Math.min(min, in.readDouble());
+                max = Math.max(max, in.readDouble());
+                final int otherOffset = in.readInt();
+                final int nonEmptyBuckets = in.readInt();
+                for (int i = 0; i < nonEmptyBuckets; i++) {
+                    final int bucket = in.readInt();
+                    addToBucket(otherOffset + bucket, in.readLong());
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Truncated QuantileSketch", e);
+            }
+        }
+
+        @Override
+        public byte[] serialize() {
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                final DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(TYPE);
+                out.writeDouble(relativeAccuracy);
+                out.writeInt(buckets.length);
+                out.writeLong(zeroCount);
+                out.writeLong(count);
+                out.writeDouble(min);
+                out.writeDouble(max);
+                out.writeInt(offset);
+                int nonEmptyBuckets = 0;
+                for (long bucket : buckets) {
+                    if (bucket > 0) nonEmptyBuckets++;
+                }
+                out.writeInt(nonEmptyBuckets);
+                for (int i = 0; i < buckets.length; i++) {
+                    if (buckets[i] == 0) continue;
+                    out.writeInt(i);
+                    out.writeLong(buckets[i]);
+                }
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Map<String, Object> summary() {
+            final Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count);
+            if (count > 0) {
+                summary.put("min", min);
+                summary.put("p50", quantile(0.5));
+                summary.put("p90", quantile(0.9));
+                summary.put("p99", quantile(0.99));
+                summary.put("max", max);
+            }
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package demo.support;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.rabbitmq.client.AMQP;
+import demo.transport.RabbitMQ;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stateful stage aggregating JSON records over event-time windows: count, and sum/min/max of a numeric field,
+ * per distinct combination of key fields. To be used as the record writer of a reader; aggregates are written
+ * downstream, one JSON record per key per window:
+ * {"windowStart":..,"windowEnd":..,"key":{(key fields)},"count":..,"sum":..,"min":..,"max":..}
+ * <p>
+ * Windows are tumbling (slide = size) or sliding (each record counts in size / slide overlapping windows).
+ * Event time comes from a numeric field (epoch milliseconds), else from the send time header
+ * ({@value RabbitMQ#SEND_TIME_HEADER}, if the producer stamps it), else from the AMQP timestamp, else from the clock.
+ * A window is emitted once the watermark (highest event time seen - allowed lateness) passes its end;
+ * records for already emitted windows are dropped and counted as errors of the "window-aggregator" metrics stage.
+ * With {@link #advanceWhenIdle(long)}, the watermark also follows the clock while no record arrives, so the last windows
+ * are emitted when input goes idle.
+ * Per key state is held in primitive arrays (see {@link AggregateMap}), keyed by the array of key field values, so
+ * aggregating allocates nothing per record beyond the parsed key values.
+ */
+public class WindowedAggregator implements Consumer<byte[]>, BiConsumer<AMQP.BasicProperties, byte[]> {
+
+    private final String[] keyFields;
+    private final String valueField;
+    private final String timeField;
+    private final long windowMillis;
+    private final long slideMillis;
+    private final long allowedLatenessMillis;
+    private final Consumer<byte[]> recordWriter;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Metrics.Stage metrics = Metrics.stage("window-aggregator");
+    // Open windows, by ascending start. Only (size / slide + lateness / slide) of them at a time.
+    private final List<Window> windows = new ArrayList<>();
+    private long maxEventTime = Long.MIN_VALUE;
+    private long lastAdvanceNanos = System.nanoTime();
+    // Per record parsing state, reused
+    private final String[] keyValues;
+
+    /**
+     * @param keyFields             top level fields the aggregates are grouped by
+     * @param valueField            top level numeric field to sum/min/max, or null to only count
+     * @param timeField             top level field holding the event time in epoch milliseconds, or null
+     * @param windowMillis          window size
+     * @param slideMillis           interval between window starts; windowMillis for tumbling windows
+     * @param allowedLatenessMillis how far behind the highest event time seen records are still aggregated
+     * @param recordWriter          downstream writer of aggregate records
+     */
+    public WindowedAggregator(
+            List<String> keyFields,
+            String valueField,
+            String timeField,
+            long windowMillis,
+            long slideMillis,
+            long allowedLatenessMillis,
+            Consumer<byte[]> recordWriter
+    ) {
+        if (windowMillis <= 0 || slideMillis <= 0 || windowMillis % slideMillis != 0) {
+            throw new IllegalArgumentException("Window size must be a positive multiple of slide: " + windowMillis + "/" + slideMillis);
+        }
+        this.keyFields = keyFields.toArray(new String[0]);
+        this.valueField = valueField;
+        this.timeField = timeField;
+        this.windowMillis = windowMillis;
+        this.slideMillis = slideMillis;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.recordWriter = recordWriter;
+        this.keyValues = new String[this.keyFields.length];
+    }
+
+    /**
+     * Tumbling windows.
+     */
+    public WindowedAggregator(List<String> keyFields, String valueField, String timeField, long windowMillis, long allowedLatenessMillis, Consumer<byte[]> recordWriter) {
+        this(keyFields, valueField, timeField, windowMillis, windowMillis, allowedLatenessMillis, recordWriter);
+    }
+
+    @Override
+    public void accept(byte[] record) {
+        accept(null, record);
+    }
+
+    @Override
+    public synchronized void accept(AMQP.BasicProperties properties, byte[] record) {
+        final long startNanos = metrics.received(record.length);
+        try {
+            // Single streaming pass over the record for keys, value and event time
+            Arrays.fill(keyValues, null);
+            double value = Double.NaN;
+            long eventTime = Long.MIN_VALUE;
+            try (JsonParser parser = jsonFactory.createParser(record)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    metrics.errors.incrementAndGet();
+                    return;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    final JsonToken token = parser.nextToken();
+                    if (!token.isScalarValue()) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    if (field.equals(valueField) && token.isNumeric()) {
+                        value = parser.getDoubleValue();
+                    } else if (field.equals(timeField) && token.isNumeric()) {
+                        eventTime = parser.getLongValue();
+                    } else {
+                        for (int i = 0; i < keyFields.length; i++) {
+                            if (field.equals(keyFields[i])) keyValues[i] = parser.getValueAsString();
+                        }
+                    }
+                }
+            }
+            if (eventTime == Long.MIN_VALUE) eventTime = eventTimeOf(properties);
+
+            if (eventTime > maxEventTime) maxEventTime = eventTime;
+            lastAdvanceNanos = System.nanoTime();
+            final long watermark = maxEventTime - allowedLatenessMillis;
+            final long lastStart = eventTime - Math.floorMod(eventTime, slideMillis);
+            if (lastStart + windowMillis <= watermark) {
+                // All windows of this record are closed
+                metrics.errors.incrementAndGet();
+            } else {
+                for (long start = lastStart; start > eventTime - windowMillis; start -= slideMillis) {
+                    if (start + windowMillis > watermark) window(start).aggregates.add(keyValues, value);
+                }
+            }
+            emitWindowsBefore(watermark);
+        } catch (IOException e) {
+            metrics.errors.incrementAndGet();
+        } finally {
+            metrics.processed(startNanos);
+        }
+    }
+
+    /**
+     * @return send time, else AMQP timestamp, else current time, in epoch milliseconds
+     */
+    private static long eventTimeOf(AMQP.BasicProperties properties) {
+        final long sendTimeMicros = RabbitMQ.sendTimeMicros(properties);
+        if (sendTimeMicros >= 0) return sendTimeMicros / 1000;
+        if (properties != null && properties.getTimestamp() != null) return properties.getTimestamp().getTime();
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Emits all open windows, e.g. at end of input.
+     */
+    public synchronized void flush() {
+        emitWindowsBefore(Long.MAX_VALUE);
+    }
+
+    /**
+     * Once no record arrived for idleMillis, advances the watermark with the clock, as if records kept arriving,
+     * emitting the windows it passes. Checked every idleMillis, in a background thread.
+     * Records arriving afterwards with older event times may then be dropped as late.
+     */
+    public void advanceWhenIdle(long idleMillis) {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "window-idle-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                advanceIfIdle(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void advanceIfIdle(long idleNanos) {
+        final long nowNanos = System.nanoTime();
+        final long elapsedNanos = nowNanos - lastAdvanceNanos;
+        if (maxEventTime == Long.MIN_VALUE || elapsedNanos < idleNanos) return;
+        maxEventTime += TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        lastAdvanceNanos = nowNanos;
+        emitWindowsBefore(maxEventTime - allowedLatenessMillis);
+    }
+
+    private Window window(long start) {
+        int index = windows.size();
+        while (index > 0 && windows.get(index - 1).start >= start) {
+            if (windows.get(index - 1).start == start) return windows.get(index - 1);
+            index--;
+        }
+        final Window window = new Window(start);
+        windows.add(index, window);
+        return window;
+    }
+
+    private void emitWindowsBefore(long watermark) {
+        while (!windows.isEmpty() && windows.get(0).start + windowMillis <= watermark) {
+            emit(windows.remove(0));
+        }
+    }
+
+    private void emit(Window window) {
+        final AggregateMap aggregates = window.aggregates;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        for (int slot = 0; slot < aggregates.keys.length; slot++) {
+            if (aggregates.keys[slot] == null) continue;
+            bytes.reset();
+            try (JsonGenerator generator = jsonFactory.createGenerator(bytes)) {
+                generator.writeStartObject();
+                generator.writeNumberField("windowStart", window.start);
+                generator.writeNumberField("windowEnd", window.start + windowMillis);
+                generator.writeObjectFieldStart("key");
+                final String[] values = aggregates.keys[slot];
+                for (int i = 0; i < keyFields.length; i++) {
+                    generator.writeStringField(keyFields[i], values[i]);
+                }
+                generator.writeEndObject();
+                generator.writeNumberField("count", aggregates.counts[slot]);
+                if (aggregates.valueCounts[slot] > 0) {
+                    generator.writeNumberField("sum", aggregates.sums[slot]);
+                    generator.writeNumberField("min", aggregates.mins[slot]);
+                    generator.writeNumberField("max", aggregates.maxs[slot]);
+                }
+                generator.writeEndObject();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            recordWriter.accept(bytes.toByteArray());
+            metrics.recordsOut.incrementAndGet();
+            metrics.bytesOut.addAndGet(bytes.size());
+        }
+    }
+
+    private static final class Window {
+        final long start;
+        final AggregateMap aggregates = new AggregateMap(64);
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    // =================================================================================================
+
+    /**
+     * Open-addressing (linear probing) map from composite key (key field values, null when absent) to count/sum/min/max,
+     * held in parallel primitive arrays. Keys are compared by 64-bit hash first, so probing rarely touches the key values.
+     */
+    static final class AggregateMap {
+        private static final double MAX_LOAD = 0.7;
+        private static final long NULL_HASH = 0x9E3779B97F4A7C15L;
+
+        long[] hashes;
+        String[][] keys;
+        long[] counts;
+        long[] valueCounts;
+        double[] sums;
+        double[] mins;
+        double[] maxs;
+        private int size;
+
+        AggregateMap(int initialCapacity) {
+            allocate(Integer.highestOneBit(Math.max(4, initialCapacity) * 2 - 1));
+        }
+
+        /**
+         * Counts key, and aggregates value unless NaN. The key array may be reused by the caller: it is copied on insert.
+         */
+        void add(String[] key, double value) {
+            final int slot = slotOf(key);
+            counts[slot]++;
+            if (!Double.isNaN(value)) {
+                if (valueCounts[slot]++ == 0) {
+                    mins[slot] = value;
+                    maxs[slot] = value;
+                } else {
+                    if (value < mins[slot]) mins[slot] = value;
+                    if (value > maxs[slot]) maxs[slot] = value;
+                }
+                sums[slot] += value;
+            }
+        }
+
+        /**
+         * @return slot of key, inserted if absent
+         */
+        private int slotOf(String[] key) {
+            final long hash = hash(key);
+            final int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (keys[slot] != null) {
+                if (hashes[slot] == hash && Arrays.equals(keys[slot], key)) return slot;
+                slot = (slot + 1) & mask;
+            }
+            if (size + 1 > keys.length * MAX_LOAD) {
+                grow();
+                return slotOf(key);
+            }
+            keys[slot] = key.clone();
+            hashes[slot] = hash;
+            size++;
+            return slot;
+        }
+
+        private void grow() {
+            final long[] oldHashes = hashes;
+            final String[][] oldKeys = keys;
+            final long[] oldCounts = counts;
+            final long[] oldValueCounts = valueCounts;
+            final double[] oldSums = sums;
+            final double[] oldMins = mins;
+            final double[] oldMaxs = maxs;
+            allocate(oldKeys.length * 2);
+            final int mask = keys.length - 1;
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                if (oldKeys[oldSlot] == null) continue;
+                int slot = (int) oldHashes[oldSlot] & mask;
+                while (keys[slot] != null) slot = (slot + 1) & mask;
+                hashes[slot] = oldHashes[oldSlot];
+                keys[slot] = oldKeys[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                valueCounts[slot] = oldValueCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+            }
+        }
+
+        private void allocate(int capacity) {
+            hashes = new long[capacity];
+            keys = new String[capacity][];
+            counts = new long[capacity];
+            valueCounts = new long[capacity];
+            sums = new double[capacity];
+            mins = new double[capacity];
+            maxs = new double[capacity];
+        }
+
+        /**
+         * Chains the hashes of the key values, so ("a", "bc") and ("ab", "c") differ; absent differs from empty.
+         */
+        private static long hash(String[] key) {
+            long hash = 0;
+            for (String value : key) {
+                hash = value == null ? Long.rotateLeft(hash, 1) ^ NULL_HASH : Hashing.hash64(value, hash);
+            }
+            return hash;
+        }
+    }
+}
@@ -6,35 +6,50 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static org.xmlpull.v1.XmlPullParser.*;
 
+/**
+ * Splits a (potentially huge) XML stream into records, in a single pass.
+ * Each XPath pattern registered in the {@link Registry} gets its own {@link TypeParser} and its own sink,
+ * so several entity types - including types nested in each other - are extracted by one parse of the input.
+ */
 public class XpathBasedParser {
 
-    private static PrintStream outFilePrinter;
-    private static final Map<String, Class<? extends TypeParser>> xpathSplitters = new HashMap();
-    private static TypeParser currentTypeParser = null;
-    private static ByteArrayOutputStream outBuffer;
-    private static Consumer<byte[]> processor; // TODO not thread safe! Fix.
+    private final Registry registry;
+    private final List<ActiveType> activeTypes = new ArrayList<>();
 
-    public static void parseFromSystemIn(Consumer<byte[]> processor) throws Exception {
-        XpathBasedParser.processor = processor;
+    public XpathBasedParser(Registry registry) {
+        this.registry = registry;
+    }
 
-        xpathSplitters.put("/items/item", ItemParser.class);
+    /**
+     * Splits "/items/item" elements from System.in and pushes each of them to the supplied processor.
+     */
+    public static void parseFromSystemIn(Consumer<byte[]> processor) throws Exception {
+        new XpathBasedParser(new Registry().register("/items/item", ItemParser::new, processor))
+                .parse(System.in);
+    }
 
+    public void parse(InputStream in) throws XmlPullParserException, IOException {
         XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
         factory.setNamespaceAware(true);
         XmlPullParser xpp = factory.newPullParser();
-        xpp.setInput(System.in, null);
-        process(xpp, "", xpp.getEventType(), xpathSplitters);
-
+        xpp.setInput(in, null);
+        process(xpp, "", xpp.getEventType());
     }
 
-    public static void process(XmlPullParser xpp, String containerXpath, int eventType, Map<String, Class<? extends TypeParser>> xpathSplitters) throws XmlPullParserException, IOException {
+    private void process(XmlPullParser xpp, String containerXpath, int eventType) throws XmlPullParserException, IOException {
         loop:
         while (true) {
             switch (eventType) {
@@ -45,16 +60,18 @@ public class XpathBasedParser {
                     final boolean isEmpty = xpp.isEmptyElementTag();
                     startTag(xpath, hasAttributes, isEmpty);
                     printAttributes(xpath, xpp, isEmpty);
-                    process(xpp, xpath, xpp.next(), xpathSplitters);
+                    process(xpp, xpath, xpp.next());
                     break;
                 case END_TAG:
                     endTag(containerXpath);
                 case END_DOCUMENT:
                     break loop;
                 case TEXT:
-                    final String text = xpp.getText().trim().replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
-                    if (text.length() > 0) {
-                        text(containerXpath, text);
+                    if (!activeTypes.isEmpty()) {
+                        final String text = xpp.getText().trim().replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
+                        if (text.length() > 0) {
+                            text(containerXpath, text);
+                        }
                     }
                     break;
             }
@@ -62,7 +79,7 @@ public class XpathBasedParser {
         }
     }
 
-    private static void printAttributes(String xpath, XmlPullParser xpp, boolean isTagEmpty) {
+    private void printAttributes(String xpath, XmlPullParser xpp, boolean isTagEmpty) {
         int attributeCount = xpp.getAttributeCount();
         if (attributeCount > 0) {
             boolean isFirst = true;
@@ -80,44 +97,137 @@ public class XpathBasedParser {
     // XPath based events
     // =================================================================================================
 
-    private static void startTag(String xpath, boolean hasAttributes, boolean isEmpty) {
-        if (xpathSplitters.containsKey(xpath)) {
-            startType(xpath, xpathSplitters.get(xpath));
+    private void startTag(String xpath, boolean hasAttributes, boolean isEmpty) {
+        final List<Route> exactRoutes = registry.exactRoutes.get(xpath);
+        if (exactRoutes != null) {
+            for (Route route : exactRoutes) startType(xpath, route);
+        } else {
+            for (Route route : registry.wildcardRoutes) {
+                if (route.matches(xpath)) startType(xpath, route);
+            }
+        }
+        for (int i = 0; i < activeTypes.size(); i++) {
+            activeTypes.get(i).typeParser.startTag(xpath, hasAttributes, isEmpty);
         }
-        if (currentTypeParser != null) currentTypeParser.startTag(xpath, hasAttributes, isEmpty);
     }
 
-    private static void attribute(String xpath, String key, String value, boolean isFirst, boolean isLast, boolean isTagEmpty) {
-        if (currentTypeParser != null) currentTypeParser.attribute(xpath, key, value, isFirst, isLast, isTagEmpty);
+    private void attribute(String xpath, String key, String value, boolean isFirst, boolean isLast, boolean isTagEmpty) {
+        for (int i = 0; i < activeTypes.size(); i++) {
+            activeTypes.get(i).typeParser.attribute(xpath, key, value, isFirst, isLast, isTagEmpty);
+        }
     }
 
-    private static void text(String xpath, String text) {
-        if (currentTypeParser != null) currentTypeParser.text(xpath, text);
+    private void text(String xpath, String text) {
+        for (int i = 0; i < activeTypes.size(); i++) {
+            activeTypes.get(i).typeParser.text(xpath, text);
+        }
     }
 
-    private static void endTag(String xpath) {
-        if (currentTypeParser != null) {
-            final boolean completed = currentTypeParser.endTag(xpath);
-            if (completed && currentTypeParser == null) endType(xpath);
+    private void endTag(String xpath) {
+        // Innermost types are the most recently started ones - complete them first
+        for (int i = activeTypes.size() - 1; i >= 0; i--) {
+            final ActiveType activeType = activeTypes.get(i);
+            final boolean completed = activeType.typeParser.endTag(xpath);
+            if (completed) {
+                activeTypes.remove(i);
+                activeType.route.sink.accept(activeType.typeParser.metadata(), activeType.typeParser.content());
+            }
         }
     }
 
-    private static void startType(String xpath, Class<? extends TypeParser> typeParserClass) {
-        if (typeParserClass == null) {
-            currentTypeParser = null;
-        } else {
-            try {
-                currentTypeParser = typeParserClass.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            currentTypeParser.setBaseXpath(xpath);
+    private void startType(String xpath, Route route) {
+        final TypeParser typeParser = route.typeParserFactory.get();
+        typeParser.setBaseXpath(xpath);
+        activeTypes.add(new ActiveType(route, typeParser));
+    }
+
+    private static final class ActiveType {
+        final Route route;
+        final TypeParser typeParser;
+
+        ActiveType(Route route, TypeParser typeParser) {
+            this.route = route;
+            this.typeParser = typeParser;
+        }
+    }
+
+    // =================================================================================================
+    // Registry
+    // =================================================================================================
+
+    /**
+     * Maps XPath patterns to type parser factories and to the sink that receives each parsed record.
+     * Patterns are absolute ("/items/item") and may contain wildcards:
+     * "*" matches exactly one element, "**" (or an empty step, as in "//item") matches any number of elements.
+     * An element matching an exact pattern is only routed by exact patterns; wildcard patterns cover the rest.
+     */
+    public static final class Registry {
+        private final Map<String, List<Route>> exactRoutes = new HashMap<>();
+        private final List<Route> wildcardRoutes = new ArrayList<>();
+
+        public Registry register(String xpathPattern, Supplier<? extends TypeParser> typeParserFactory, Consumer<byte[]> sink) {
+            return register(xpathPattern, typeParserFactory, (metadata, record) -> sink.accept(record));
         }
 
+        /**
+         * @param sink receives the metadata of each parsed record (see {@link TypeParser#metadata()}) along with the record
+         */
+        public Registry register(String xpathPattern, Supplier<? extends TypeParser> typeParserFactory, BiConsumer<Map<String, String>, byte[]> sink) {
+            if (!xpathPattern.startsWith("/")) {
+                throw new IllegalArgumentException("XPath pattern must be absolute: " + xpathPattern);
+            }
+            final Route route = new Route(xpathPattern, typeParserFactory, sink);
+            if (route.isWildcard) {
+                wildcardRoutes.add(route);
+            } else {
+                exactRoutes.computeIfAbsent(xpathPattern, k -> new ArrayList<>()).add(route);
+            }
+            return this;
+        }
     }
 
-    private static void endType(String xpath) {
-        outFilePrinter.println();
+    private static final class Route {
+        final String[] steps;
+        final boolean isWildcard;
+        final Supplier<? extends TypeParser> typeParserFactory;
+        final BiConsumer<Map<String, String>, byte[]> sink;
+
+        Route(String xpathPattern, Supplier<? extends TypeParser> typeParserFactory, BiConsumer<Map<String, String>, byte[]> sink) {
+            this.typeParserFactory = typeParserFactory;
+            this.sink = sink;
+            steps = xpathPattern.substring(1).split("/", -1);
+            boolean isWildcard = false;
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i].isEmpty()) steps[i] = "**";
+                if (steps[i].equals("*") || steps[i].equals("**")) isWildcard = true;
+            }
+            this.isWildcard = isWildcard;
+        }
+
+        boolean matches(String xpath) {
+            return matches(0, xpath, 0);
+        }
+
+        /**
+         * @param position index of the '/' starting the next element of xpath, or xpath length if none left
+         */
+        private boolean matches(int step, String xpath, int position) {
+            if (step == steps.length) return position == xpath.length();
+            final String stepName = steps[step];
+            if (stepName.equals("**")) {
+                for (int p = position; p <= xpath.length(); p++) {
+                    if ((p == xpath.length() || xpath.charAt(p) == '/') && matches(step + 1, xpath, p)) return true;
+                }
+                return false;
+            }
+            if (position >= xpath.length()) return false;
+            int next = xpath.indexOf('/', position + 1);
+            if (next < 0) next = xpath.length();
+            final int nameLength = next - position - 1;
+            final boolean nameMatches = stepName.equals("*")
+                    || (stepName.length() == nameLength && xpath.regionMatches(position + 1, stepName, 0, nameLength));
+            return nameMatches && matches(step + 1, xpath, next);
+        }
     }
 
     // =================================================================================================
@@ -125,7 +235,7 @@ public class XpathBasedParser {
     // =================================================================================================
 
 
-    interface TypeParser {
+    public interface TypeParser {
         void setBaseXpath(String xpath);
 
         void startTag(String xpath, boolean hasAttributes, boolean isEmpty);
@@ -138,15 +248,34 @@ public class XpathBasedParser {
          * @return true if type parsing is completed
          */
         boolean endTag(String xpath);
+
+        /**
+         * @return the parsed record. Called once, after {@link #endTag(String)} returned true.
+         */
+        byte[] content();
+
+        /**
+         * @return metadata of the parsed record (e.g. its id), to be carried alongside the content. Called once, after {@link #endTag(String)} returned true.
+         */
+        default Map<String, String> metadata() {
+            return Collections.emptyMap();
+        }
     }
 
     // =================================================================================================
 
-    static final class ItemParser implements TypeParser {
+    /**
+     * Re-serializes the matched element (and everything under it) as indented XML.
+     * The matched element name is reported as "type" metadata, and its "id" attribute, if any, as "id".
+     */
+    public static final class ItemParser implements TypeParser {
         private String baseXpath;
         private ByteArrayOutputStream startTagStream = new ByteArrayOutputStream();
         private PrintStream startTagBuffer = new PrintStream(startTagStream);
         private boolean isStartTagEmpty = false;
+        private ByteArrayOutputStream outBuffer;
+        private PrintStream outFilePrinter;
+        private String id;
 
         @Override
         public void setBaseXpath(String xpath) {
@@ -166,6 +295,7 @@ public class XpathBasedParser {
 
         @Override
         public void attribute(String xpath, String attrKey, String attrValue, boolean isFirst, boolean isLast, boolean isTagEmpty) {
+            if (id == null && attrKey.equals("id") && xpath.equals(baseXpath)) id = attrValue;
             startTagBuffer.print(" ");
             startTagBuffer.print(attrKey);
             startTagBuffer.print("=\"");
@@ -217,19 +347,23 @@ public class XpathBasedParser {
             }
             isStartTagEmpty = false;
             if (xpath.equals(baseXpath)) {
-                currentTypeParser = null;
-                completeType();
+                outFilePrinter.close();
                 return true;
             }
             return false;
         }
 
-        private void completeType() {
-            if (outFilePrinter != null) {
-                outFilePrinter.close();
-                final byte[] content = outBuffer.toByteArray();
-                processor.accept(content);
-            }
+        @Override
+        public byte[] content() {
+            return outBuffer.toByteArray();
+        }
+
+        @Override
+        public Map<String, String> metadata() {
+            final Map<String, String> metadata = new HashMap<>();
+            metadata.put("type", baseXpath.substring(baseXpath.lastIndexOf('/') + 1));
+            if (id != null) metadata.put("id", id);
+            return metadata;
         }
     }
 }
@@ -1,6 +1,7 @@
 package demo.transport;
 
 import demo.codec.JsonCodec;
+import demo.support.Metrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -11,6 +12,7 @@ public class Console {
 
     /**
      * Read from console (System.in) and push to the supplier processor, then write to supplied RecordWriter.
+     * Records for which the processor returns null are dropped.
      */
     public static class Reader {
 
@@ -20,6 +22,7 @@ public class Console {
         private final Function<byte[], byte[]> processor;
         private final Consumer<byte[]> recordWriter;
         private boolean isFirstRecord = true;
+        private final Metrics.Stage metrics = Metrics.stage("console-reader");
 
         public Reader(int inputRecordSeparator, Function<byte[], byte[]> processor, Consumer<byte[]> recordWriter) {
             this.inputRecordSeparator = inputRecordSeparator;
@@ -67,11 +70,15 @@ public class Console {
         }
 
         private void processSingleRecord(byte[] singleRecordInputBytes) throws IOException {
+            final long startNanos = metrics.received(singleRecordInputBytes.length);
             try {
                 final byte[] result = processor.apply(singleRecordInputBytes);
-                recordWriter.accept(result);
+                if (result != null) recordWriter.accept(result);
             } catch (Exception e) {
+                metrics.errors.incrementAndGet();
                 e.printStackTrace();
+            } finally {
+                metrics.processed(startNanos);
             }
         }
     }
@@ -80,6 +87,7 @@ public class Console {
 
         private final int outputRecordSeparator;
         private boolean isFirstRecord = true;
+        private final Metrics.Stage metrics = Metrics.stage("console-writer");
 
         public Writer(int outputRecordSeparator) {
             this.outputRecordSeparator = outputRecordSeparator;
@@ -87,10 +95,13 @@ public class Console {
 
         @Override
         public void accept(byte[] singleRecordOutputBytes) {
+            final long startNanos = System.nanoTime();
             try {
                 if (!isFirstRecord) System.out.write(outputRecordSeparator);
                 System.out.write(singleRecordOutputBytes);
+                metrics.published(singleRecordOutputBytes.length, startNanos);
             } catch (Exception e) {
+                metrics.errors.incrementAndGet();
                 e.printStackTrace();
             }
             isFirstRecord = false;
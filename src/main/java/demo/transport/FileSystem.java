@@ -0,0 +1,207 @@
+package demo.transport;
+
+import demo.support.Metrics;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class FileSystem {
+
+    /**
+     * Write-behind file writer: the caller only enqueues (file, content) pairs, a pool of I/O threads does the
+     * actual mkdirs / open / write / close.
+     * Each I/O thread has its own queue, and a file always goes to the same thread (by path hash), so writes to
+     * the same file happen in order: the last one enqueued wins.
+     * Queues are bounded, so a caller faster than the disk is blocked instead of exhausting the heap.
+     * Directories already created are cached, so a record in an existing directory costs no extra syscalls.
+     */
+    public static class Writer implements AutoCloseable {
+
+        public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+        public static final int DIRECTORY_CACHE_MAX_SIZE = 100_000;
+        /**
+         * Max files an I/O thread keeps open waiting for fsync, whatever syncEvery
+         */
+        public static final int MAX_UNSYNCED_FILES = 256;
+        private static final long IDLE_POLL_MILLIS = 100;
+
+        private final List<BlockingQueue<PendingWrite>> queues;
+        private final Set<File> createdDirectories = ConcurrentHashMap.newKeySet();
+        private final Thread[] ioThreads;
+        private final int syncEvery;
+        private volatile boolean isClosed = false;
+        // Held (shared) while enqueuing, (exclusive) while closing: nothing is enqueued once the I/O threads may stop
+        private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+        private final Metrics.Stage metrics = Metrics.stage("file-writer");
+
+        /**
+         * @param ioThreadCount number of threads writing files concurrently
+         * @param queueCapacity max number of records waiting to be written, shared among the I/O threads
+         * @param syncEvery     fsync written files in batches of this size, at most {@link #MAX_UNSYNCED_FILES}
+         *                      (and whenever the queue is idle). 0 to never fsync.
+         */
+        public Writer(int ioThreadCount, int queueCapacity, int syncEvery) {
+            this.syncEvery = Math.min(syncEvery, MAX_UNSYNCED_FILES);
+            this.queues = new ArrayList<>(ioThreadCount);
+            this.ioThreads = new Thread[ioThreadCount];
+            for (int i = 0; i < ioThreadCount; i++) {
+                final BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity / ioThreadCount));
+                queues.add(queue);
+                ioThreads[i] = new Thread(() -> drain(queue), "file-writer-" + i);
+                ioThreads[i].setDaemon(true);
+                ioThreads[i].start();
+            }
+            metrics.queueDepthGauge(this::queueDepth);
+        }
+
+        public Writer(int ioThreadCount) {
+            this(ioThreadCount, DEFAULT_QUEUE_CAPACITY, 0);
+        }
+
+        /**
+         * Enqueues content to be written to file, replacing the file if it exists.
+         * Blocks while the queue is full.
+         */
+        public void write(File file, byte[] content) {
+            closeLock.readLock().lock();
+            try {
+                if (isClosed) throw new IllegalStateException("Writer is closed");
+                queues.get((file.getPath().hashCode() & Integer.MAX_VALUE) % queues.size()).put(new PendingWrite(file, content));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }
+
+        public int queueDepth() {
+            int queueDepth = 0;
+            for (BlockingQueue<PendingWrite> queue : queues) {
+                queueDepth += queue.size();
+            }
+            return queueDepth;
+        }
+
+        /**
+         * Writes (and syncs, if configured) everything already enqueued, then stops the I/O threads.
+         */
+        @Override
+        public void close() {
+            closeLock.writeLock().lock();
+            try {
+                isClosed = true;
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+            for (Thread ioThread : ioThreads) {
+                try {
+                    ioThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void drain(BlockingQueue<PendingWrite> queue) {
+            final List<FileOutputStream> unsynced = new ArrayList<>();
+            while (true) {
+                final PendingWrite pendingWrite;
+                try {
+                    pendingWrite = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (pendingWrite == null) {
+                    syncAndClose(unsynced);
+                    if (isClosed && queue.isEmpty()) break;
+                    continue;
+                }
+                FileOutputStream fos = null;
+                final long startNanos = System.nanoTime();
+                try {
+                    final File directory = pendingWrite.file.getParentFile();
+                    ensureDirectory(directory);
+                    try {
+                        fos = new FileOutputStream(pendingWrite.file);
+                    } catch (FileNotFoundException e) {
+                        // Cached directory was removed behind our back
+                        if (directory == null) throw e;
+                        createdDirectories.remove(directory);
+                        directory.mkdirs();
+                        fos = new FileOutputStream(pendingWrite.file);
+                    }
+                    fos.write(pendingWrite.content);
+                    metrics.published(pendingWrite.content.length, startNanos);
+                } catch (Exception e) {
+                    metrics.errors.incrementAndGet();
+                    e.printStackTrace();
+                }
+                if (fos == null) continue;
+                if (syncEvery > 0) {
+                    unsynced.add(fos);
+                    if (unsynced.size() >= syncEvery) syncAndClose(unsynced);
+                } else {
+                    close(fos);
+                }
+            }
+            syncAndClose(unsynced);
+        }
+
+        private void ensureDirectory(File directory) {
+            if (directory == null || createdDirectories.contains(directory)) return;
+            final File parent = directory.getParentFile();
+            if (parent != null && createdDirectories.contains(parent)) {
+                // A single mkdir syscall instead of a stat per path element
+                directory.mkdir();
+            } else {
+                directory.mkdirs();
+                if (parent != null) createdDirectories.add(parent);
+            }
+            if (createdDirectories.size() >= DIRECTORY_CACHE_MAX_SIZE) createdDirectories.clear();
+            createdDirectories.add(directory);
+        }
+
+        private static void syncAndClose(List<FileOutputStream> unsynced) {
+            for (FileOutputStream fos : unsynced) {
+                try {
+                    fos.getFD().sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                close(fos);
+            }
+            unsynced.clear();
+        }
+
+        private static void close(FileOutputStream fos) {
+            try {
+                fos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        final File file;
+        final byte[] content;
+
+        PendingWrite(File file, byte[] content) {
+            this.file = file;
+            this.content = content;
+        }
+    }
+}
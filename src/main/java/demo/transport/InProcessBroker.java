@@ -0,0 +1,334 @@
+package demo.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a RabbitMQ broker, for benchmarks and load tests without a server.
+ * Supports what the transports of this module use: queue declare/delete, publish to the default exchange,
+ * consume (each consumer is fed by its own thread), cancel, publisher confirms, close and blocked connection notifications.
+ * Closing behaves as with a real broker: closed channels and connections report so, and reject further use with
+ * {@link AlreadyClosedException}. Closing a connection closes its channels.
+ * Not modelled: messages are acknowledged on delivery whatever the auto-ack flag (no redelivery), and are confirmed
+ * as soon as published (they are queued in memory synchronously). Anything else is a no-op.
+ */
+public class InProcessBroker {
+
+    private final Map<String, BlockingQueue<Message>> queues = new ConcurrentHashMap<>();
+    private final List<ConsumerDispatcher> dispatchers = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return a transport context connected to this broker
+     */
+    public RabbitMQ.Context newContext() throws IOException {
+        return new RabbitMQ.Context("in-process", newConnection());
+    }
+
+    public Connection newConnection() {
+        final List<Channel> channels = new CopyOnWriteArrayList<>();
+        final AtomicBoolean isOpen = new AtomicBoolean(true);
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return isOpen.get();
+                        case "toString":
+                            return "InProcessBroker.Connection";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "close":
+                        case "abort":
+                            if (isOpen.getAndSet(false)) {
+                                for (Channel channel : channels) channel.abort();
+                            } else if (method.getName().equals("close")) {
+                                throw alreadyClosed(proxy, true);
+                            }
+                            return null;
+                    }
+                    if (!isOpen.get()) throw alreadyClosed(proxy, true);
+                    switch (method.getName()) {
+                        case "createChannel": {
+                            final Channel channel = newChannel((Connection) proxy, channels);
+                            channels.add(channel);
+                            return channel;
+                        }
+                        case "addBlockedListener":
+                            if (args[0] instanceof BlockedListener) blockedListeners.add((BlockedListener) args[0]);
+                            return args[0] instanceof BlockedListener ? args[0] : null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    /**
+     * @return number of messages waiting in queue (0 if queue does not exist)
+     */
+    public int queueDepth(String queue) {
+        final BlockingQueue<Message> messages = queues.get(queue);
+        return messages == null ? 0 : messages.size();
+    }
+
+    /**
+     * Simulates broker flow control: notifies blocked listeners of all connections. Publishing is not actually blocked.
+     */
+    public void setBlocked(boolean isBlocked) {
+        for (BlockedListener blockedListener : blockedListeners) {
+            try {
+                if (isBlocked) {
+                    blockedListener.handleBlocked("in-process broker blocked");
+                } else {
+                    blockedListener.handleUnblocked();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Channel newChannel(Connection connection, List<Channel> connectionChannels) {
+        final List<ConsumerDispatcher> channelDispatchers = new CopyOnWriteArrayList<>();
+        final AtomicBoolean isOpen = new AtomicBoolean(true);
+        final AtomicBoolean isConfirmSelected = new AtomicBoolean();
+        return (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return isOpen.get();
+                        case "getConnection":
+                            return connection;
+                        case "toString":
+                            return "InProcessBroker.Channel";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "close":
+                        case "abort":
+                            if (isOpen.getAndSet(false)) {
+                                connectionChannels.remove(proxy);
+                                for (ConsumerDispatcher dispatcher : channelDispatchers) dispatcher.shutdown(proxy);
+                            } else if (method.getName().equals("close")) {
+                                throw alreadyClosed(proxy, false);
+                            }
+                            return null;
+                    }
+                    if (!isOpen.get()) throw alreadyClosed(proxy, false);
+                    switch (method.getName()) {
+                        case "queueDeclare": {
+                            final String queue = args == null || args.length == 0 ? "amq.gen-" + nextId.incrementAndGet() : (String) args[0];
+                            queue(queue);
+                            return new AMQP.Queue.DeclareOk.Builder().queue(queue).build();
+                        }
+                        case "queueDelete": {
+                            final String queue = (String) args[0];
+                            queues.remove(queue);
+                            for (ConsumerDispatcher dispatcher : dispatchers) {
+                                if (dispatcher.queue.equals(queue)) dispatcher.cancel(false);
+                            }
+                            return null;
+                        }
+                        case "basicPublish": {
+                            // All overloads: (exchange, routingKey, [mandatory, [immediate,]] properties, body)
+                            final String routingKey = (String) args[1];
+                            queue(routingKey).add(new Message((AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]));
+                            return null;
+                        }
+                        case "basicConsume": {
+                            final Consumer consumer = findConsumer(args);
+                            final String consumerTag = "in-process-" + nextId.incrementAndGet();
+                            final ConsumerDispatcher dispatcher = new ConsumerDispatcher((String) args[0], consumerTag, consumer);
+                            dispatchers.add(dispatcher);
+                            channelDispatchers.add(dispatcher);
+                            dispatcher.start();
+                            return consumerTag;
+                        }
+                        case "basicCancel":
+                            for (ConsumerDispatcher dispatcher : channelDispatchers) {
+                                if (dispatcher.consumerTag.equals(args[0])) dispatcher.cancel(true);
+                            }
+                            return null;
+                        case "messageCount":
+                            return (long) queueDepth((String) args[0]);
+                        case "confirmSelect":
+                            isConfirmSelected.set(true);
+                            return new AMQP.Confirm.SelectOk.Builder().build();
+                        case "waitForConfirms":
+                        case "waitForConfirmsOrDie":
+                            if (!isConfirmSelected.get()) throw new IllegalStateException("Confirms not selected");
+                            // Publishing queued every message already
+                            return method.getReturnType() == boolean.class ? true : null;
+                        default:
+                            return defaultValue(method);
+                    }
+                });
+    }
+
+    private BlockingQueue<Message> queue(String queue) {
+        return queues.computeIfAbsent(queue, q -> new LinkedBlockingQueue<>());
+    }
+
+    private static AlreadyClosedException alreadyClosed(Object reference, boolean isConnection) {
+        return new AlreadyClosedException(new ShutdownSignalException(isConnection, true, null, reference));
+    }
+
+    /**
+     * @return the Consumer argument of a basicConsume overload, or one calling its callback arguments
+     */
+    private static Consumer findConsumer(Object[] args) {
+        DeliverCallback deliverCallback = null;
+        CancelCallback cancelCallback = null;
+        ConsumerShutdownSignalCallback shutdownSignalCallback = null;
+        for (Object arg : args) {
+            if (arg instanceof Consumer) return (Consumer) arg;
+            if (arg instanceof DeliverCallback) deliverCallback = (DeliverCallback) arg;
+            if (arg instanceof CancelCallback) cancelCallback = (CancelCallback) arg;
+            if (arg instanceof ConsumerShutdownSignalCallback) shutdownSignalCallback = (ConsumerShutdownSignalCallback) arg;
+        }
+        return new CallbackConsumer(deliverCallback, cancelCallback, shutdownSignalCallback);
+    }
+
+    private static Object defaultValue(Method method) {
+        final Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        return null;
+    }
+
+    private static final class Message {
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+
+        Message(AMQP.BasicProperties properties, byte[] body) {
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+
+    private static final class CallbackConsumer implements Consumer {
+        private final DeliverCallback deliverCallback;
+        private final CancelCallback cancelCallback;
+        private final ConsumerShutdownSignalCallback shutdownSignalCallback;
+
+        CallbackConsumer(DeliverCallback deliverCallback, CancelCallback cancelCallback, ConsumerShutdownSignalCallback shutdownSignalCallback) {
+            this.deliverCallback = deliverCallback;
+            this.cancelCallback = cancelCallback;
+            this.shutdownSignalCallback = shutdownSignalCallback;
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) throws IOException {
+            if (cancelCallback != null) cancelCallback.handle(consumerTag);
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (shutdownSignalCallback != null) shutdownSignalCallback.handleShutdownSignal(consumerTag, sig);
+        }
+
+        @Override
+        public void handleRecoverOk(String consumerTag) {
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+        }
+    }
+
+    private final class ConsumerDispatcher extends Thread {
+        final String queue;
+        final String consumerTag;
+        final Consumer consumer;
+        private final AtomicLong deliveryTag = new AtomicLong();
+        private volatile boolean isRunning = true;
+
+        ConsumerDispatcher(String queue, String consumerTag, Consumer consumer) {
+            super("in-process-consumer-" + queue);
+            setDaemon(true);
+            this.queue = queue;
+            this.consumerTag = consumerTag;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            consumer.handleConsumeOk(consumerTag);
+            final BlockingQueue<Message> messages = queue(queue);
+            while (isRunning) {
+                try {
+                    final Message message = messages.poll(100, TimeUnit.MILLISECONDS);
+                    if (message == null) continue;
+                    final Envelope envelope = new Envelope(deliveryTag.incrementAndGet(), false, "", queue);
+                    consumer.handleDelivery(consumerTag, envelope, message.properties, message.body);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void cancel(boolean isClientInitiated) {
+            isRunning = false;
+            dispatchers.remove(this);
+            try {
+                if (isClientInitiated) {
+                    consumer.handleCancelOk(consumerTag);
+                } else {
+                    consumer.handleCancel(consumerTag);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void shutdown(Object channel) {
+            if (!isRunning) return;
+            isRunning = false;
+            dispatchers.remove(this);
+            consumer.handleShutdownSignal(consumerTag, new ShutdownSignalException(false, true, null, channel));
+        }
+    }
+}
@@ -1,14 +1,69 @@
 package demo.transport;
 
 import com.rabbitmq.client.*;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+import demo.codec.JsonCodec;
+import demo.support.Metrics;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class RabbitMQ {
 
+    /**
+     * Time a record entered the pipeline, in epoch microseconds. Readers measure end-to-end age from it.
+     * Only stamped by writers asked to (see {@link Writer#stampSendTime(boolean)}), or by the producer itself.
+     */
+    public static final String SEND_TIME_HEADER = "send-time-us";
+
+    /**
+     * @return message properties carrying the supplied metadata as AMQP headers
+     */
+    public static AMQP.BasicProperties withHeaders(Map<String, ?> headers) {
+        return new AMQP.BasicProperties.Builder()
+                .headers(new HashMap<>(headers))
+                .build();
+    }
+
+    /**
+     * @return entry time of a message ({@link #SEND_TIME_HEADER}), or -1 if absent
+     */
+    public static long sendTimeMicros(AMQP.BasicProperties properties) {
+        if (properties == null || properties.getHeaders() == null) return -1;
+        final Object sendTime = properties.getHeaders().get(SEND_TIME_HEADER);
+        if (sendTime instanceof Number) return ((Number) sendTime).longValue();
+        return sendTime == null ? -1 : Long.parseLong(sendTime.toString());
+    }
+
+    /**
+     * @return value of an AMQP header as string, or null if absent. Avoids touching the message body.
+     */
+    public static String header(AMQP.BasicProperties properties, String key) {
+        if (properties == null || properties.getHeaders() == null) return null;
+        final Object value = properties.getHeaders().get(key);
+        return value == null ? null : value.toString();
+    }
 
     public static class Context {
         public final Connection connection;
@@ -23,6 +78,15 @@ public class RabbitMQ {
             channel = connection.createChannel();
         }
 
+        /**
+         * Wraps an already established connection (e.g. to an {@link InProcessBroker}).
+         */
+        public Context(String host, Connection connection) throws IOException {
+            this.host = host;
+            this.connection = connection;
+            this.channel = connection.createChannel();
+        }
+
         public void shutdown() {
             try {
                 channel.close();
@@ -37,28 +101,58 @@ public class RabbitMQ {
         }
     }
 
+    /**
+     * Consumes a RabbitMQ queue, pushes each message to the processor, then to the record writer.
+     * Processor and record writer may be given the message properties (headers included);
+     * the record writer is given the properties of the input message.
+     * Records for which the processor returns null are dropped.
+     */
     public static class Reader {
         private final Context context;
         private final String inQueue;
-        private final Function<byte[], byte[]> processor;
-        private final java.util.function.Consumer<byte[]> recordWriter;
+        private final BiFunction<AMQP.BasicProperties, byte[], byte[]> processor;
+        private final BiConsumer<AMQP.BasicProperties, byte[]> recordWriter;
+        private final AutoCloseable closeableWriter; // the record writer as given, if closeable
         private static int terminatingTimeoutSeconds = 10; // terminate processSingleRecord if no message received after timeout
         private volatile boolean shouldShutDown = false;
+        private final Metrics.Stage metrics;
 
         public Reader(
                 String inQueue,
                 Context context,
                 Function<byte[], byte[]> processor,
                 java.util.function.Consumer<byte[]> recordWriter
+        ) {
+            this(inQueue, context, (properties, body) -> processor.apply(body), (properties, output) -> recordWriter.accept(output), recordWriter);
+        }
+
+        public Reader(
+                String inQueue,
+                Context context,
+                BiFunction<AMQP.BasicProperties, byte[], byte[]> processor,
+                BiConsumer<AMQP.BasicProperties, byte[]> recordWriter
+        ) {
+            this(inQueue, context, processor, recordWriter, recordWriter);
+        }
+
+        private Reader(
+                String inQueue,
+                Context context,
+                BiFunction<AMQP.BasicProperties, byte[], byte[]> processor,
+                BiConsumer<AMQP.BasicProperties, byte[]> recordWriter,
+                Object givenRecordWriter
         ) {
             this.context = context;
             this.inQueue = inQueue;
             this.processor = processor;
             this.recordWriter = recordWriter;
+            this.closeableWriter = givenRecordWriter instanceof AutoCloseable ? (AutoCloseable) givenRecordWriter : null;
+            this.metrics = Metrics.stage("rabbitmq-reader:" + inQueue);
         }
 
         /**
          * Listens to RabbiMQ specified input queue until queue is cancelled / deleted.
+         * Then closes the record writer, if closeable, and the connection.
          */
         public void run() throws IOException {
             try {
@@ -82,8 +176,26 @@ public class RabbitMQ {
 
                     @Override
                     public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-                        final byte[] outputRecordBytes = processor.apply(body);
-                        recordWriter.accept(outputRecordBytes);
+                        // Age from the microsecond entry time header if stamped, else from the (one second) AMQP timestamp
+                        final long sendTimeMicros = sendTimeMicros(properties);
+                        if (sendTimeMicros >= 0) {
+                            metrics.age.record(Metrics.epochMicros() - sendTimeMicros);
+                        } else if (properties.getTimestamp() != null) {
+                            metrics.age.record((System.currentTimeMillis() - properties.getTimestamp().getTime()) * 1000);
+                        }
+                        final long startNanos = metrics.received(body.length);
+                        try {
+                            final byte[] outputRecordBytes = processor.apply(properties, body);
+                            if (outputRecordBytes != null) {
+                                recordWriter.accept(properties, outputRecordBytes);
+                                metrics.recordsOut.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            metrics.errors.incrementAndGet();
+                            throw e;
+                        } finally {
+                            metrics.processed(startNanos);
+                        }
                     }
                 };
                 context.channel.basicConsume(inQueue, true, consumer);
@@ -97,6 +209,14 @@ public class RabbitMQ {
 
                 System.err.println("Input queue '" + inQueue + "' cancelled. Shutting down");
             } finally {
+                // Writers buffering records (e.g. RoutingWriter) may still need the connection to publish them
+                if (closeableWriter != null) {
+                    try {
+                        closeableWriter.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
                 try {
                     context.shutdown();
                 } catch (Exception e) {
@@ -106,25 +226,609 @@ public class RabbitMQ {
         }
     }
 
-    public static class Writer implements Consumer<byte[]> {
+    /**
+     * Publishes records to a RabbitMQ queue, optionally with message properties (e.g. metadata headers).
+     */
+    public static class Writer implements Consumer<byte[]>, BiConsumer<AMQP.BasicProperties, byte[]> {
 
         private final String outQueue;
         private final Channel channel;
+        private final Metrics.Stage metrics;
+        private volatile boolean stampSendTime = false;
 
         public Writer(String outQueue, Context context) throws IOException {
             this.outQueue = outQueue;
             this.channel = context.channel;
+            this.metrics = Metrics.stage("rabbitmq-writer:" + outQueue);
             channel.queueDeclare(outQueue, false, false, false, null);
         }
 
+        /**
+         * Stamps the records published here with their entry time ({@link #SEND_TIME_HEADER}) unless already stamped,
+         * so downstream Readers measure their end-to-end age. Off by default: it costs a header map per message,
+         * and adds a header to messages that otherwise go out without properties.
+         */
+        public void stampSendTime(boolean stampSendTime) {
+            this.stampSendTime = stampSendTime;
+        }
+
         @Override
         public void accept(byte[] singleRecordOutputBytes) {
+            accept(null, singleRecordOutputBytes);
+        }
+
+        @Override
+        public void accept(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) {
             try {
-                channel.basicPublish("", outQueue, null, singleRecordOutputBytes);
+                publish(properties, singleRecordOutputBytes);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Like {@link #accept(AMQP.BasicProperties, byte[])}, but lets the caller handle publish failures.
+         */
+        public void publish(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) throws IOException {
+            if (stampSendTime && sendTimeMicros(properties) < 0) {
+                properties = stamped(properties);
+            }
+            final long startNanos = System.nanoTime();
+            try {
+                channel.basicPublish("", outQueue, properties, singleRecordOutputBytes);
+                metrics.published(singleRecordOutputBytes.length, startNanos);
+            } catch (IOException e) {
+                metrics.errors.incrementAndGet();
+                throw e;
+            }
+        }
+
+        private static AMQP.BasicProperties stamped(AMQP.BasicProperties properties) {
+            if (properties == null) {
+                return new AMQP.BasicProperties.Builder()
+                        .headers(Collections.singletonMap(SEND_TIME_HEADER, Metrics.epochMicros()))
+                        .build();
+            }
+            final Map<String, Object> headers = properties.getHeaders() == null ? new HashMap<>() : new HashMap<>(properties.getHeaders());
+            headers.put(SEND_TIME_HEADER, Metrics.epochMicros());
+            return properties.builder().headers(headers).build();
+        }
+    }
+
+    /**
+     * Writer that keeps upstream running at full speed through broker slowdowns.
+     * While the broker blocks the connection (flow control), while publishing fails, or after a publish slower than
+     * the latency threshold, records are diverted to a local {@link SpillJournal} instead of being published.
+     * A background thread drains the journal back to the broker, in order, once it recovers; new records keep going
+     * to the journal until it is empty, so ordering is preserved. Spilled records survive a restart and are drained first.
+     * Drained records are only removed from the journal once confirmed by the broker (publisher confirms, on a channel
+     * of their own), so a batch interrupted by a failure is published again: drained records are delivered at least once.
+     * Spilled records keep their message properties as is (AMQP content header encoding, header value types included).
+     * The journal is forced to disk at most every {@value #FORCE_INTERVAL_MILLIS}ms while it changes: a crash loses
+     * at most the records spilled in that interval.
+     * <p>
+     * To be called from a single thread, like {@link Writer}.
+     */
+    public static class SpillingWriter implements Consumer<byte[]>, BiConsumer<AMQP.BasicProperties, byte[]>, AutoCloseable {
+
+        private static final long RETRY_BACKOFF_MILLIS = 1000;
+        private static final int DRAIN_BATCH_SIZE = 100;
+        private static final long CONFIRM_TIMEOUT_MILLIS = 10_000;
+        private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+        private final String outQueue;
+        private final Context context;
+        private final Writer writer;
+        private final SpillJournal journal;
+        private final long publishLatencyThresholdNanos;
+        private final Object lock = new Object();
+        private final Thread drainer;
+        private final Metrics.Stage metrics;
+        private boolean isSpilling;
+        private long divertUntilNanos = 0;
+        private volatile boolean isBlocked = false;
+        private volatile boolean isClosed = false;
+        // Guarded by lock
+        private boolean isJournalUnforced = false;
+        private long journalForcedNanos = System.nanoTime();
+        // Used by the drainer only, in confirm mode. Reopened after a failure.
+        private Context drainContext;
+        private Writer drainWriter;
+
+        public SpillingWriter(String outQueue, Context context, File spillDir, long publishLatencyThresholdMillis) throws IOException {
+            this.outQueue = outQueue;
+            this.context = context;
+            this.writer = new Writer(outQueue, context);
+            this.journal = new SpillJournal(spillDir);
+            this.publishLatencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(publishLatencyThresholdMillis);
+            this.isSpilling = !journal.isEmpty();
+            this.metrics = Metrics.stage("rabbitmq-spill:" + outQueue);
+            metrics.queueDepthGauge(journal::size);
+            context.connection.addBlockedListener(new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) {
+                    isBlocked = true;
+                }
+
+                @Override
+                public void handleUnblocked() {
+                    isBlocked = false;
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+            });
+            drainer = new Thread(this::drain, "spill-drainer-" + outQueue);
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        @Override
+        public void accept(byte[] singleRecordOutputBytes) {
+            accept(null, singleRecordOutputBytes);
+        }
+
+        @Override
+        public void accept(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) {
+            synchronized (lock) {
+                if (isSpilling || isBlocked) {
+                    spill(properties, singleRecordOutputBytes);
+                    return;
+                }
+            }
+            final long startNanos = System.nanoTime();
+            try {
+                writer.publish(properties, singleRecordOutputBytes);
+            } catch (IOException | RuntimeException e) {
+                // Including AlreadyClosedException once the channel is gone: the record is kept, not lost
+                e.printStackTrace();
+                synchronized (lock) {
+                    spill(properties, singleRecordOutputBytes);
+                }
+                return;
+            }
+            if (System.nanoTime() - startNanos > publishLatencyThresholdNanos) {
+                synchronized (lock) {
+                    isSpilling = true;
+                    divertUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MILLIS);
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Stops draining. Records still in the journal are drained on next start.
+         */
+        @Override
+        public void close() {
+            isClosed = true;
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeDrainChannel();
+            synchronized (lock) {
+                journal.close();
+            }
+        }
+
+        /**
+         * To be called holding lock.
+         */
+        private void spill(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) {
+            try {
+                journal.append(encode(properties, singleRecordOutputBytes));
+                metrics.recordsIn.incrementAndGet();
+                metrics.bytesIn.addAndGet(singleRecordOutputBytes.length);
+            } catch (IOException e) {
+                // Nowhere left to put the record
+                metrics.errors.incrementAndGet();
+                e.printStackTrace();
+            }
+            isSpilling = true;
+            isJournalUnforced = true;
+            lock.notifyAll();
+        }
+
+        /**
+         * To be called holding lock.
+         */
+        private void forceJournalPeriodically() {
+            if (isJournalUnforced && System.nanoTime() - journalForcedNanos >= TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MILLIS)) {
+                journal.force();
+                isJournalUnforced = false;
+                journalForcedNanos = System.nanoTime();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                final List<byte[]> spilled;
+                synchronized (lock) {
+                    try {
+                        forceJournalPeriodically();
+                        while (!isClosed && (!isSpilling || isBlocked)) {
+                            lock.wait(RETRY_BACKOFF_MILLIS);
+                            forceJournalPeriodically();
+                        }
+                        if (isClosed) return;
+                        spilled = journal.peek(DRAIN_BATCH_SIZE);
+                        if (spilled.isEmpty()) {
+                            // Keep diverting for a while after a slow publish, rather than flapping
+                            final long divertNanos = divertUntilNanos - System.nanoTime();
+                            if (divertNanos > 0) {
+                                lock.wait(Math.max(1, Math.min(FORCE_INTERVAL_MILLIS, TimeUnit.NANOSECONDS.toMillis(divertNanos))));
+                            } else {
+                                isSpilling = false;
+                            }
+                            continue;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+                final long startNanos = System.nanoTime();
+                final int[] bodyLengths = new int[spilled.size()];
+                try {
+                    if (drainWriter == null) openDrainChannel();
+                    for (int i = 0; i < spilled.size(); i++) {
+                        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(spilled.get(i)));
+                        final AMQP.BasicProperties properties = decodeProperties(in);
+                        final byte[] body = new byte[in.available()];
+                        in.readFully(body);
+                        drainWriter.publish(properties, body);
+                        bodyLengths[i] = body.length;
+                    }
+                    // Closes the channel on nack or timeout
+                    drainContext.channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+                    synchronized (lock) {
+                        for (int i = 0; i < spilled.size(); i++) {
+                            journal.remove();
+                        }
+                        isJournalUnforced = true;
+                    }
+                    for (int bodyLength : bodyLengths) {
+                        metrics.published(bodyLength, startNanos);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | TimeoutException | RuntimeException e) {
+                    // Including AlreadyClosedException: retry the whole batch on a new channel
+                    e.printStackTrace();
+                    closeDrainChannel();
+                    sleep(RETRY_BACKOFF_MILLIS);
+                    continue;
+                }
+                if (System.nanoTime() - startNanos > publishLatencyThresholdNanos) {
+                    // Broker still slow: give it room instead of hammering it
+                    synchronized (lock) {
+                        divertUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MILLIS);
+                    }
+                    sleep(RETRY_BACKOFF_MILLIS / 10);
+                }
+            }
+        }
+
+        private void openDrainChannel() throws IOException {
+            drainContext = new Context(context.host, context.connection);
+            drainContext.channel.confirmSelect();
+            drainWriter = new Writer(outQueue, drainContext);
+        }
+
+        private void closeDrainChannel() {
+            if (drainContext == null) return;
+            try {
+                if (drainContext.channel.isOpen()) drainContext.channel.close();
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            drainContext = null;
+            drainWriter = null;
+        }
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        /**
+         * Spilled record: [boolean hasProperties][properties, as in an AMQP content header][body]
+         */
+        private static byte[] encode(AMQP.BasicProperties properties, byte[] body) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(properties != null);
+            if (properties != null) {
+                // Weight and body size, read back (and ignored) by BasicProperties(DataInputStream)
+                out.writeShort(0);
+                out.writeLong(0);
+                properties.writePropertiesTo(new ContentHeaderPropertyWriter(out));
+            }
+            out.write(body);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static AMQP.BasicProperties decodeProperties(DataInputStream in) throws IOException {
+            return in.readBoolean() ? new AMQP.BasicProperties(in) : null;
+        }
+    }
+
+    /**
+     * Writer that routes each record to zero or more queues, computed by a router from the record
+     * (e.g. {@link #byHeader(String, String)}, {@link #byJsonField(String, String)}, {@link #byPredicates(Map)}).
+     * Each destination queue is declared on first use and gets its own channel, in publisher confirm mode:
+     * records are buffered per destination and published in batches of batchSize (or after lingerMillis),
+     * each batch being confirmed by the broker before the next one is published.
+     * At most {@link #MAX_DESTINATIONS} destinations are open at a time: the least recently used one is flushed and
+     * closed to make room. A batch that failed is published again, on a new channel, until confirmed: input records are
+     * consumed with auto-ack, so they cannot be nacked back instead, and dropping them would lose them. Meanwhile records
+     * for that destination wait (backpressure). Only when closing, or once the connection is gone, is a batch given up
+     * after {@value #CLOSE_FLUSH_ATTEMPTS} attempts, counted as errors.
+     * Records routed nowhere are dropped and counted as errors of the "rabbitmq-router" metrics stage.
+     */
+    public static class RoutingWriter implements Consumer<byte[]>, BiConsumer<AMQP.BasicProperties, byte[]>, AutoCloseable {
+
+        public static final int DEFAULT_BATCH_SIZE = 100;
+        public static final long DEFAULT_LINGER_MILLIS = 20;
+        /**
+         * Each destination holds a channel, and a connection only has so many (channel_max, 2047 by default)
+         */
+        public static final int MAX_DESTINATIONS = 256;
+        private static final long CONFIRM_TIMEOUT_MILLIS = 10_000;
+        private static final long RETRY_BACKOFF_MILLIS = 1000;
+        private static final int CLOSE_FLUSH_ATTEMPTS = 3;
+
+        private final Context context;
+        private final BiFunction<AMQP.BasicProperties, byte[], Collection<String>> router;
+        private final int batchSize;
+        private final long lingerNanos;
+        // In access order, for eviction. Guarded by itself.
+        private final LinkedHashMap<String, Destination> destinations = new LinkedHashMap<>(16, 0.75f, true);
+        private final ScheduledExecutorService flusher;
+        private final Metrics.Stage metrics;
+        private volatile boolean isClosing = false;
+
+        public RoutingWriter(Context context, BiFunction<AMQP.BasicProperties, byte[], Collection<String>> router, int batchSize, long lingerMillis) {
+            this.context = context;
+            this.router = router;
+            this.batchSize = batchSize;
+            this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            this.metrics = Metrics.stage("rabbitmq-router");
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "routing-writer-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> {
+                // An exception would cancel the task
+                try {
+                    for (Destination destination : destinations()) {
+                        destination.flushIfLingering();
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public RoutingWriter(Context context, BiFunction<AMQP.BasicProperties, byte[], Collection<String>> router) {
+            this(context, router, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+        }
+
+        /**
+         * @return router to queuePrefix + the value of an AMQP header. Does not touch the record body.
+         */
+        public static BiFunction<AMQP.BasicProperties, byte[], Collection<String>> byHeader(String header, String queuePrefix) {
+            return (properties, body) -> {
+                final String value = header(properties, header);
+                return value == null || value.isEmpty() ? Collections.emptyList() : Collections.singletonList(queuePrefix + value);
+            };
+        }
+
+        /**
+         * @return router to queuePrefix + the value of a top level field of a JSON record
+         */
+        public static BiFunction<AMQP.BasicProperties, byte[], Collection<String>> byJsonField(String field, String queuePrefix) {
+            final Function<byte[], String> fieldValue = JsonCodec.fieldValue(field);
+            return (properties, body) -> {
+                final String value = fieldValue.apply(body);
+                return value == null || value.isEmpty() ? Collections.emptyList() : Collections.singletonList(queuePrefix + value);
+            };
+        }
+
+        /**
+         * @return router to every queue whose predicate matches the record (fan-out)
+         */
+        public static BiFunction<AMQP.BasicProperties, byte[], Collection<String>> byPredicates(Map<String, BiPredicate<AMQP.BasicProperties, byte[]>> queuePredicates) {
+            return (properties, body) -> {
+                final List<String> queues = new ArrayList<>(1);
+                for (Map.Entry<String, BiPredicate<AMQP.BasicProperties, byte[]>> queuePredicate : queuePredicates.entrySet()) {
+                    if (queuePredicate.getValue().test(properties, body)) queues.add(queuePredicate.getKey());
+                }
+                return queues;
+            };
+        }
+
+        @Override
+        public void accept(byte[] singleRecordOutputBytes) {
+            accept(null, singleRecordOutputBytes);
+        }
+
+        @Override
+        public void accept(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) {
+            final long startNanos = metrics.received(singleRecordOutputBytes.length);
+            try {
+                final Collection<String> queues = router.apply(properties, singleRecordOutputBytes);
+                if (queues == null || queues.isEmpty()) {
+                    metrics.errors.incrementAndGet();
+                    return;
+                }
+                for (String queue : queues) {
+                    destination(queue).add(properties, singleRecordOutputBytes);
+                }
+                metrics.recordsOut.incrementAndGet();
+                metrics.bytesOut.addAndGet(singleRecordOutputBytes.length);
+            } catch (IOException | RuntimeException e) {
+                // Destination could not be opened. Dropped, like Writer does on failure.
+                metrics.errors.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                metrics.processed(startNanos);
+            }
+        }
+
+        /**
+         * Publishes all buffered records.
+         */
+        public void flush() {
+            for (Destination destination : destinations()) {
+                destination.flush();
+            }
+        }
+
+        /**
+         * @return open destination of queue, opened if needed, evicting the least recently used one if too many
+         */
+        private Destination destination(String queue) throws IOException {
+            final Destination destination;
+            Destination evicted = null;
+            synchronized (destinations) {
+                Destination existing = destinations.get(queue);
+                if (existing == null) {
+                    existing = new Destination(queue);
+                    destinations.put(queue, existing);
+                    if (destinations.size() > MAX_DESTINATIONS) {
+                        final Iterator<Destination> eldest = destinations.values().iterator();
+                        evicted = eldest.next();
+                        eldest.remove();
+                    }
+                }
+                destination = existing;
+            }
+            if (evicted != null) evicted.close();
+            return destination;
+        }
+
+        private List<Destination> destinations() {
+            synchronized (destinations) {
+                return new ArrayList<>(destinations.values());
+            }
+        }
+
+        /**
+         * Publishes all buffered records and closes destination channels. The connection is left open.
+         */
+        @Override
+        public void close() {
+            isClosing = true;
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(CONFIRM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Destination destination : destinations()) {
+                destination.close();
+            }
+        }
+
+        private final class Destination {
+            private final String queue;
+            private final List<AMQP.BasicProperties> bufferedProperties;
+            private final List<byte[]> bufferedRecords;
+            private long firstBufferedNanos;
+            // Reopened after a failed batch
+            private Context destinationContext;
+            private Writer writer;
+
+            Destination(String queue) throws IOException {
+                this.queue = queue;
+                bufferedProperties = new ArrayList<>(batchSize);
+                bufferedRecords = new ArrayList<>(batchSize);
+                openChannel();
+            }
+
+            private void openChannel() throws IOException {
+                final Context newContext = new Context(context.host, context.connection);
+                if (newContext.channel == null) throw new IOException("No channel left on connection for queue " + queue);
+                newContext.channel.confirmSelect();
+                writer = new Writer(queue, newContext);
+                destinationContext = newContext;
+            }
+
+            synchronized void add(AMQP.BasicProperties properties, byte[] singleRecordOutputBytes) {
+                if (bufferedRecords.isEmpty()) firstBufferedNanos = System.nanoTime();
+                bufferedProperties.add(properties);
+                bufferedRecords.add(singleRecordOutputBytes);
+                if (bufferedRecords.size() >= batchSize) flush();
+            }
+
+            synchronized void flushIfLingering() {
+                if (!bufferedRecords.isEmpty() && System.nanoTime() - firstBufferedNanos >= lingerNanos) flush();
+            }
+
+            /**
+             * Publishes the batch and waits for the broker to confirm it. A failed batch is published again on a new channel
+             * (waitForConfirmsOrDie closes the channel on failure) after a backoff, see {@link RoutingWriter}.
+             */
+            synchronized void flush() {
+                if (bufferedRecords.isEmpty()) return;
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        if (writer == null) openChannel();
+                        for (int i = 0; i < bufferedRecords.size(); i++) {
+                            writer.publish(bufferedProperties.get(i), bufferedRecords.get(i));
+                        }
+                        destinationContext.channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+                        break;
+                    } catch (IOException | InterruptedException | TimeoutException | RuntimeException e) {
+                        // Including AlreadyClosedException, after an earlier failure or an eviction
+                        if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+                        e.printStackTrace();
+                        closeChannel();
+                        if (!context.connection.isOpen() || Thread.currentThread().isInterrupted()
+                                || (isClosing && attempt >= CLOSE_FLUSH_ATTEMPTS)) {
+                            System.err.println("Giving up " + bufferedRecords.size() + " records for queue '" + queue + "' after " + attempt + " attempt(s)");
+                            metrics.errors.addAndGet(bufferedRecords.size());
+                            break;
+                        }
+                        try {
+                            Thread.sleep(RETRY_BACKOFF_MILLIS);
+                        } catch (InterruptedException ignored) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                bufferedProperties.clear();
+                bufferedRecords.clear();
+            }
+
+            synchronized void close() {
+                flush();
+                closeChannel();
+            }
+
+            private void closeChannel() {
+                if (destinationContext == null) return;
+                try {
+                    if (destinationContext.channel.isOpen()) destinationContext.channel.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                destinationContext = null;
+                writer = null;
+            }
+        }
     }
 
     /**
@@ -0,0 +1,468 @@
+package demo.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only record store: an alternative to writing one file per record.
+ * Records of each type are appended to rolling segment files under baseDir/type/.
+ * An index log (baseDir/type/index) maps each id to its (segment, offset, length), so a point lookup is a
+ * single positional read and a scan is a sequential read of the segments.
+ * Writing an existing id supersedes the previous record. {@link #compact(String)} reclaims superseded records.
+ * Index entries are only written once the records they point to are, so after a crash the index never points
+ * to data that did not make it; records written after the last {@link #flush()} may be lost.
+ * <p>
+ * Segment record layout: [int idLength][id UTF-8][int contentLength][content].
+ * Index entry layout: [short idLength][id UTF-8][int segment][long contentOffset][int contentLength].
+ */
+public class SegmentStore implements AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+    private final File baseDir;
+    private final long segmentMaxBytes;
+    private final Map<String, TypeLog> typeLogs = new HashMap<>();
+    private ScheduledExecutorService flusher;
+
+    public SegmentStore(File baseDir, long segmentMaxBytes) {
+        this.baseDir = baseDir;
+        this.segmentMaxBytes = segmentMaxBytes;
+        baseDir.mkdirs();
+    }
+
+    public SegmentStore(File baseDir) {
+        this(baseDir, DEFAULT_SEGMENT_MAX_BYTES);
+    }
+
+    /**
+     * Appends a record. Supersedes any previous record with the same type and id.
+     */
+    public void write(String type, String id, byte[] content) {
+        final TypeLog typeLog = typeLog(type);
+        synchronized (typeLog) {
+            try {
+                typeLog.append(id, content);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return latest content written for id, or null if none
+     */
+    public byte[] read(String type, String id) {
+        final TypeLog typeLog = typeLog(type);
+        synchronized (typeLog) {
+            try {
+                return typeLog.read(id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Sequentially pushes the latest content of every id of type to consumer, in write order.
+     */
+    public void scan(String type, BiConsumer<String, byte[]> consumer) {
+        final TypeLog typeLog = typeLog(type);
+        synchronized (typeLog) {
+            try {
+                typeLog.scan(consumer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Copies live records out of mostly superseded segments (all but the active one), then deletes those segments
+     * and rewrites the index without superseded entries.
+     */
+    public void compact(String type) {
+        final TypeLog typeLog = typeLog(type);
+        synchronized (typeLog) {
+            try {
+                typeLog.compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Flushes every periodMillis, in a background thread, bounding what a crash can lose.
+     */
+    public synchronized void flushPeriodically(long periodMillis) {
+        if (flusher != null) flusher.shutdown();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "segment-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pushes buffered records and index entries to the OS.
+     */
+    public void flush() {
+        for (TypeLog typeLog : typeLogs()) {
+            synchronized (typeLog) {
+                try {
+                    typeLog.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (flusher != null) flusher.shutdown();
+        }
+        for (TypeLog typeLog : typeLogs()) {
+            synchronized (typeLog) {
+                try {
+                    typeLog.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized List<TypeLog> typeLogs() {
+        return new ArrayList<>(typeLogs.values());
+    }
+
+    private synchronized TypeLog typeLog(String type) {
+        return typeLogs.computeIfAbsent(type, t -> {
+            try {
+                return new TypeLog(new File(baseDir, t));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static final class Location {
+        final int segment;
+        final long contentOffset;
+        final int contentLength;
+
+        Location(int segment, long contentOffset, int contentLength) {
+            this.segment = segment;
+            this.contentOffset = contentOffset;
+            this.contentLength = contentLength;
+        }
+    }
+
+    private final class TypeLog {
+        private final File dir;
+        private final Map<String, Location> index = new HashMap<>();
+        private final TreeMap<Integer, RandomAccessFile> segments = new TreeMap<>();
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        // Index entries of records still in writeBuffer: written to the index once the records are in the segment
+        private final ByteArrayOutputStream pendingIndexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pendingIndex = new DataOutputStream(pendingIndexBytes);
+        private DataOutputStream indexOut;
+        private int activeSegment;
+        private long activeSegmentSize;
+
+        TypeLog(File dir) throws IOException {
+            this.dir = dir;
+            dir.mkdirs();
+            final File[] segmentFiles = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (segmentFiles != null) {
+                for (File segmentFile : segmentFiles) {
+                    final int segment = Integer.parseInt(segmentFile.getName().substring(0, segmentFile.getName().length() - SEGMENT_SUFFIX.length()));
+                    segments.put(segment, new RandomAccessFile(segmentFile, "rw"));
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.put(0, new RandomAccessFile(segmentFile(0), "rw"));
+            }
+            activeSegment = segments.lastKey();
+            activeSegmentSize = segments.get(activeSegment).length();
+            loadIndex();
+            indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, INDEX_FILE_NAME), true)));
+            recoverActiveSegment();
+        }
+
+        private File segmentFile(int segment) {
+            return new File(dir, String.format("%010d%s", segment, SEGMENT_SUFFIX));
+        }
+
+        private void loadIndex() throws IOException {
+            final File indexFile = new File(dir, INDEX_FILE_NAME);
+            if (!indexFile.exists()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                while (true) {
+                    final String id;
+                    final Location location;
+                    try {
+                        final byte[] idBytes = new byte[in.readUnsignedShort()];
+                        in.readFully(idBytes);
+                        id = new String(idBytes, StandardCharsets.UTF_8);
+                        location = new Location(in.readInt(), in.readLong(), in.readInt());
+                    } catch (EOFException e) {
+                        break; // possibly a torn last entry
+                    }
+                    final RandomAccessFile segmentFile = segments.get(location.segment);
+                    if (segmentFile != null && location.contentOffset + location.contentLength <= segmentFile.length()) {
+                        index.put(id, location);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Re-indexes records appended to the active segment after the last index entry that reached the disk.
+         */
+        private void recoverActiveSegment() throws IOException {
+            long position = 0;
+            for (Location location : index.values()) {
+                if (location.segment == activeSegment) position = Math.max(position, location.contentOffset + location.contentLength);
+            }
+            final RandomAccessFile segmentFile = segments.get(activeSegment);
+            final long segmentSize = segmentFile.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(activeSegment))))) {
+                skipFully(in, position);
+                while (true) {
+                    final long recordOffset = position;
+                    final String id;
+                    final int contentLength;
+                    try {
+                        // Lengths of a torn record are garbage: check them against the segment size
+                        // (skip() also happily goes past the end of a file)
+                        final int idLength = in.readInt();
+                        if (idLength < 0 || recordOffset + 8 + idLength > segmentSize) throw new EOFException();
+                        final byte[] idBytes = new byte[idLength];
+                        in.readFully(idBytes);
+                        id = new String(idBytes, StandardCharsets.UTF_8);
+                        contentLength = in.readInt();
+                        if (contentLength < 0 || recordOffset + 8 + idLength + contentLength > segmentSize) throw new EOFException();
+                        skipFully(in, contentLength);
+                    } catch (EOFException e) {
+                        // Truncate torn record, if any
+                        segmentFile.setLength(recordOffset);
+                        activeSegmentSize = recordOffset;
+                        break;
+                    }
+                    final long contentOffset = recordOffset + 8 + id.getBytes(StandardCharsets.UTF_8).length;
+                    position = contentOffset + contentLength;
+                    putIndex(id, new Location(activeSegment, contentOffset, contentLength));
+                }
+            }
+        }
+
+        void append(String id, byte[] content) throws IOException {
+            final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            final int recordLength = 8 + idBytes.length + content.length;
+            if (activeSegmentSize + writeBuffer.position() > 0 && activeSegmentSize + writeBuffer.position() + recordLength > segmentMaxBytes) {
+                rollSegment();
+            }
+            final long recordOffset = activeSegmentSize + writeBuffer.position();
+            if (recordLength > writeBuffer.remaining()) flushSegment();
+            if (recordLength > writeBuffer.capacity()) {
+                final ByteBuffer record = ByteBuffer.allocate(recordLength);
+                putRecord(record, idBytes, content);
+                record.flip();
+                writeFully(record);
+            } else {
+                putRecord(writeBuffer, idBytes, content);
+            }
+            putIndex(id, new Location(activeSegment, recordOffset + 8 + idBytes.length, content.length));
+        }
+
+        private void putRecord(ByteBuffer buffer, byte[] idBytes, byte[] content) {
+            buffer.putInt(idBytes.length).put(idBytes).putInt(content.length).put(content);
+        }
+
+        private void putIndex(String id, Location location) throws IOException {
+            index.put(id, location);
+            if (indexOut != null) writeIndexEntry(pendingIndex, id, location);
+        }
+
+        private void writeIndexEntry(DataOutputStream out, String id, Location location) throws IOException {
+            final byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(idBytes.length);
+            out.write(idBytes);
+            out.writeInt(location.segment);
+            out.writeLong(location.contentOffset);
+            out.writeInt(location.contentLength);
+        }
+
+        private void rollSegment() throws IOException {
+            flushSegment();
+            activeSegment++;
+            segments.put(activeSegment, new RandomAccessFile(segmentFile(activeSegment), "rw"));
+            activeSegmentSize = 0;
+        }
+
+        private void flushSegment() throws IOException {
+            writeBuffer.flip();
+            writeFully(writeBuffer);
+            writeBuffer.clear();
+            pendingIndexBytes.writeTo(indexOut);
+            pendingIndexBytes.reset();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            final FileChannel channel = segments.get(activeSegment).getChannel();
+            while (buffer.hasRemaining()) {
+                activeSegmentSize += channel.write(buffer, activeSegmentSize);
+            }
+        }
+
+        byte[] read(String id) throws IOException {
+            final Location location = index.get(id);
+            if (location == null) return null;
+            if (location.segment == activeSegment && location.contentOffset >= activeSegmentSize) {
+                // Still in the write buffer (records are never split between buffer and segment): read it from there
+                final byte[] content = new byte[location.contentLength];
+                final ByteBuffer buffered = writeBuffer.duplicate();
+                buffered.position((int) (location.contentOffset - activeSegmentSize));
+                buffered.get(content);
+                return content;
+            }
+            final ByteBuffer content = ByteBuffer.allocate(location.contentLength);
+            final FileChannel channel = segments.get(location.segment).getChannel();
+            long position = location.contentOffset;
+            while (content.hasRemaining()) {
+                final int read = channel.read(content, position);
+                if (read < 0) throw new EOFException("Segment " + location.segment + " truncated");
+                position += read;
+            }
+            return content.array();
+        }
+
+        void scan(BiConsumer<String, byte[]> consumer) throws IOException {
+            flushSegment();
+            for (int segment : new ArrayList<>(segments.keySet())) {
+                scanSegment(segment, consumer);
+            }
+        }
+
+        private void scanSegment(int segment, BiConsumer<String, byte[]> consumer) throws IOException {
+            final long segmentSize = segments.get(segment).length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment)), WRITE_BUFFER_SIZE))) {
+                long position = 0;
+                while (position < segmentSize) {
+                    final byte[] idBytes = new byte[in.readInt()];
+                    in.readFully(idBytes);
+                    final byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    final long contentOffset = position + 8 + idBytes.length;
+                    position = contentOffset + content.length;
+
+                    final String id = new String(idBytes, StandardCharsets.UTF_8);
+                    final Location location = index.get(id);
+                    if (location != null && location.segment == segment && location.contentOffset == contentOffset) {
+                        consumer.accept(id, content);
+                    }
+                }
+            }
+        }
+
+        void compact() throws IOException {
+            flushSegment();
+            final Map<Integer, Long> liveBytes = new HashMap<>();
+            for (Location location : index.values()) {
+                liveBytes.merge(location.segment, (long) location.contentLength, Long::sum);
+            }
+            final List<Integer> sealedSegments = new ArrayList<>();
+            for (int segment : segments.headMap(activeSegment).keySet()) {
+                if (liveBytes.getOrDefault(segment, 0L) < segments.get(segment).length() * COMPACTION_LIVE_RATIO) {
+                    sealedSegments.add(segment);
+                }
+            }
+            if (sealedSegments.isEmpty()) return;
+            if (activeSegmentSize > 0) rollSegment();
+            for (int segment : sealedSegments) {
+                scanSegment(segment, (id, content) -> {
+                    try {
+                        append(id, content);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            flush();
+            rewriteIndex();
+            for (int segment : sealedSegments) {
+                segments.remove(segment).close();
+                Files.delete(segmentFile(segment).toPath());
+            }
+        }
+
+        private void rewriteIndex() throws IOException {
+            indexOut.close();
+            final File indexFile = new File(dir, INDEX_FILE_NAME);
+            final File tmpIndexFile = new File(dir, INDEX_FILE_NAME + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpIndexFile)))) {
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    writeIndexEntry(out, entry.getKey(), entry.getValue());
+                }
+            }
+            Files.move(tmpIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        }
+
+        void flush() throws IOException {
+            flushSegment();
+            indexOut.flush();
+        }
+
+        void close() throws IOException {
+            flush();
+            indexOut.close();
+            for (RandomAccessFile segmentFile : segments.values()) {
+                segmentFile.close();
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                in.readByte(); // throws EOFException at end of stream
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
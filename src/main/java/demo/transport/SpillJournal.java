@@ -0,0 +1,206 @@
+package demo.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * FIFO of byte records held in memory-mapped, append-only segment files, so a large backlog costs no heap.
+ * Records are consumed with {@link #peek(int)} then {@link #remove()}; consumed records are marked in place,
+ * and a segment file is deleted once fully consumed. Pending records survive a process restart, and a crash once
+ * written out by {@link #force()}.
+ * <p>
+ * Record layout: [int header][bytes]. header = length + 1 for a pending record, -(length + 1) for a consumed one,
+ * 0 (the zero-filled rest of the segment) for end of written data.
+ * Not thread safe.
+ */
+public class SpillJournal implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final File dir;
+    private final int segmentSize;
+    private final TreeSet<Integer> segments = new TreeSet<>();
+    private int writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private int readSegment;
+    private MappedByteBuffer readBuffer;
+    private MappedByteBuffer readMapping; // the mapping readBuffer is a view of
+    private long pendingRecords;
+
+    public SpillJournal(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        dir.mkdirs();
+        final File[] segmentFiles = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                final String name = segmentFile.getName();
+                segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(0);
+            writeSegment = 0;
+            writeBuffer = map(0, segmentSize);
+        } else {
+            writeSegment = segments.last();
+            writeBuffer = map(writeSegment, 0);
+        }
+        recover();
+    }
+
+    public SpillJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Positions the reader on the first pending record, the writer after the last record, and counts pending records.
+     */
+    private void recover() throws IOException {
+        readSegment = segments.first();
+        mapReadSegment();
+        for (int segment : segments) {
+            final MappedByteBuffer buffer = segment == writeSegment ? writeBuffer : segment == readSegment ? readMapping : map(segment, 0);
+            int position = 0;
+            while (position + 4 <= buffer.capacity()) {
+                final int header = buffer.getInt(position);
+                if (header == 0) break;
+                if (header > 0) {
+                    pendingRecords++;
+                } else if (segment == readSegment && position == readBuffer.position()) {
+                    readBuffer.position(position + 4 - header - 1);
+                }
+                position += 4 + Math.abs(header) - 1;
+            }
+            if (segment == writeSegment) writeBuffer.position(position);
+        }
+    }
+
+    public void append(byte[] record) throws IOException {
+        if (writeBuffer.position() + 4 + record.length > writeBuffer.capacity()) {
+            writeBuffer.force();
+            writeSegment++;
+            segments.add(writeSegment);
+            writeBuffer = map(writeSegment, Math.max(segmentSize, 8 + record.length));
+        }
+        final int position = writeBuffer.position();
+        writeBuffer.position(position + 4);
+        writeBuffer.put(record);
+        // Header last, so a reader (or a recovery after a crash) never sees a half written record as pending
+        writeBuffer.putInt(position, record.length + 1);
+        pendingRecords++;
+    }
+
+    /**
+     * @return up to maxRecords oldest pending records, from the segment being read only. Empty if none.
+     * They are consumed by calling {@link #remove()} once per record.
+     */
+    public List<byte[]> peek(int maxRecords) throws IOException {
+        final List<byte[]> records = new ArrayList<>();
+        if (!seekPending()) return records;
+        final ByteBuffer buffer = readBuffer.duplicate();
+        int position = buffer.position();
+        while (records.size() < maxRecords && position + 4 <= buffer.capacity()) {
+            final int header = buffer.getInt(position);
+            if (header == 0) break;
+            if (header > 0) {
+                final byte[] record = new byte[header - 1];
+                buffer.position(position + 4);
+                buffer.get(record);
+                records.add(record);
+            }
+            position += 4 + Math.abs(header) - 1;
+        }
+        return records;
+    }
+
+    /**
+     * Marks the oldest pending record (the first one returned by {@link #peek(int)}) as consumed.
+     */
+    public void remove() throws IOException {
+        if (!seekPending()) return;
+        final int position = readBuffer.position();
+        final int header = readBuffer.getInt(position);
+        readBuffer.putInt(position, -header);
+        readBuffer.position(position + 4 + header - 1);
+        pendingRecords--;
+    }
+
+    /**
+     * Moves the reader to the oldest pending record, deleting fully consumed segments on the way.
+     *
+     * @return false if there is no pending record
+     */
+    private boolean seekPending() throws IOException {
+        while (true) {
+            final int position = readBuffer.position();
+            final int header = position + 4 <= readBuffer.capacity() ? readBuffer.getInt(position) : 0;
+            if (header > 0) return true;
+            if (header < 0) {
+                readBuffer.position(position + 4 - header - 1);
+                continue;
+            }
+            if (readSegment == writeSegment) return false;
+            // Segment fully consumed: move to the next one. The mapping itself is released by GC.
+            segments.remove(readSegment);
+            Files.deleteIfExists(segmentFile(readSegment).toPath());
+            readSegment = segments.first();
+            mapReadSegment();
+        }
+    }
+
+    public long size() {
+        return pendingRecords;
+    }
+
+    public boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    /**
+     * Writes appended records and consumed marks out to the segment files.
+     */
+    public void force() {
+        writeBuffer.force();
+        if (readMapping != writeBuffer) readMapping.force();
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+
+    /**
+     * The reader has its own position, so it gets its own view when reading the segment being written.
+     */
+    private void mapReadSegment() throws IOException {
+        readMapping = readSegment == writeSegment ? writeBuffer : map(readSegment, 0);
+        readBuffer = (MappedByteBuffer) readMapping.duplicate();
+        readBuffer.position(0);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @param size size of a new segment file, or 0 to map an existing one whole
+     */
+    private MappedByteBuffer map(int segment, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw")) {
+            if (size > 0) file.setLength(size);
+            final FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+    }
+}
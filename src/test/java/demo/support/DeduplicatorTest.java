@@ -0,0 +1,136 @@
+package demo.support;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records are JSON objects keyed by their "id" field; the exact check is the set of ids whose processing completed.
+ */
+public class DeduplicatorTest {
+
+    private final Set<String> processedIds = new HashSet<>();
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws IOException {
+        snapshotFile = new File(Files.createTempDirectory("dedup-test").toFile(), "dedup.snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        snapshotFile.delete();
+        new File(snapshotFile.getPath() + ".tmp").delete();
+        snapshotFile.getParentFile().delete();
+    }
+
+    @Test
+    public void duplicatesAreDropped() {
+        final Deduplicator deduplicator = newDeduplicator();
+        final List<String> processed = new ArrayList<>();
+        final Function<byte[], byte[]> processor = deduplicator.over(recording(processed));
+
+        assertArrayEquals(record("a"), processor.apply(record("a")));
+        assertArrayEquals(record("b"), processor.apply(record("b")));
+        assertNull(processor.apply(record("a")));
+        assertArrayEquals(record("c"), processor.apply(record("c")));
+        assertNull(processor.apply(record("b")));
+        assertNull(processor.apply(record("a")));
+        assertEquals(Arrays.asList("a", "b", "c"), processed);
+    }
+
+    @Test
+    public void idIsNotMarkedSeenWhenProcessingFailed() {
+        // Exact check trusting the filter: only the filter tells whether the id was marked
+        final Deduplicator deduplicator = new Deduplicator(Deduplicator.jsonFieldKey("id"), 7, TimeUnit.HOURS.toMillis(4), 10000, 0.001, id -> true);
+        final List<String> processed = new ArrayList<>();
+        final Function<byte[], byte[]> recording = recording(processed);
+        final boolean[] isFailing = {true};
+        final Function<byte[], byte[]> processor = deduplicator.over((byte[] body) -> {
+            if (isFailing[0]) throw new IllegalStateException("processing failed");
+            return recording.apply(body);
+        });
+
+        try {
+            processor.apply(record("a"));
+            fail("processor failure must propagate");
+        } catch (IllegalStateException expected) {
+        }
+        isFailing[0] = false;
+
+        // Redelivery of the failed record is processed
+        assertArrayEquals(record("a"), processor.apply(record("a")));
+        assertEquals(Arrays.asList("a"), processed);
+        assertNull(processor.apply(record("a")));
+    }
+
+    @Test
+    public void falsePositivesAreNeverDropped() {
+        // A filter of 64 bits for 10000 ids reports nearly every unseen id as possibly seen
+        final Deduplicator deduplicator = new Deduplicator(Deduplicator.jsonFieldKey("id"), 2, TimeUnit.HOURS.toMillis(1), 1, 0.5, processedIds::contains);
+        final List<String> processed = new ArrayList<>();
+        final Function<byte[], byte[]> processor = deduplicator.over(recording(processed));
+
+        for (int i = 0; i < 10000; i++) {
+            processor.apply(record("id" + i));
+        }
+        assertEquals(10000, processed.size());
+    }
+
+    @Test
+    public void snapshotIsRestored() throws IOException {
+        final Deduplicator deduplicator = newDeduplicator();
+        for (int i = 0; i < 1000; i++) {
+            deduplicator.markSeen("id" + i);
+            processedIds.add("id" + i);
+        }
+        deduplicator.snapshot(snapshotFile);
+
+        final Deduplicator restored = newDeduplicator();
+        restored.restore(snapshotFile);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(restored.isDuplicate("id" + i));
+        }
+    }
+
+    private Deduplicator newDeduplicator() {
+        return new Deduplicator(Deduplicator.jsonFieldKey("id"), 7, TimeUnit.HOURS.toMillis(4), 10000, 0.001, processedIds::contains);
+    }
+
+    /**
+     * @return identity processor recording the ids processed, in the list and as processed for the exact check
+     */
+    private Function<byte[], byte[]> recording(List<String> processed) {
+        final BiFunction<AMQP.BasicProperties, byte[], String> idOf = Deduplicator.jsonFieldKey("id");
+        return body -> {
+            final String id = idOf.apply(null, body);
+            processed.add(id);
+            processedIds.add(id);
+            return body;
+        };
+    }
+
+    private static byte[] record(String id) {
+        return ("{\"id\":\"" + id + "\",\"value\":1}").getBytes(StandardCharsets.UTF_8);
+    }
+}
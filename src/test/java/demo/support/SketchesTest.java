@@ -0,0 +1,149 @@
+package demo.support;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy bounds are checked against exact answers, well within the documented errors so the tests are not flaky;
+ * streams are seeded.
+ */
+public class SketchesTest {
+
+    @Test
+    public void distinctCountIsWithinErrorBound() {
+        // Precision 14: standard error 0.8%
+        final Sketches.HyperLogLog sketch = new Sketches.HyperLogLog(14);
+        for (int i = 0; i < 200_000; i++) {
+            sketch.add("user" + i);
+            sketch.add("user" + (i / 2)); // duplicates do not count
+        }
+        assertEquals(200_000, sketch.estimate(), 200_000 * 0.03);
+
+        final Sketches.HyperLogLog small = new Sketches.HyperLogLog(14);
+        for (int i = 0; i < 1000; i++) {
+            small.add("user" + i);
+        }
+        assertEquals(1000, small.estimate(), 1000 * 0.02);
+    }
+
+    @Test
+    public void heavyHittersAreFoundWithBoundedOverestimate() {
+        final Sketches.HeavyHitters sketch = new Sketches.HeavyHitters(10, 2048, 5);
+        final Map<String, Long> counts = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // A quarter are hot values h0..h9, weighted n + 1, among a long tail of rare values
+            final String value = random.nextInt(4) == 0 ? "h" + hotIndex(random) : "tail" + random.nextInt(50_000);
+            sketch.add(value);
+            counts.merge(value, 1L, Long::sum);
+        }
+
+        final Set<String> top = new HashSet<>();
+        for (Map.Entry<String, Long> hitter : sketch.top()) {
+            top.add(hitter.getKey());
+        }
+        final Set<String> hot = new HashSet<>();
+        for (int n = 0; n < 10; n++) {
+            hot.add("h" + n);
+        }
+        assertEquals(hot, top);
+
+        // Never under, and over by at most 2 * total / width (with probability 1 - 0.5^depth per value)
+        final double maxOverestimate = 2.0 * 100_000 / 2048;
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            final long estimate = sketch.estimate(count.getKey());
+            assertTrue(count.getKey(), estimate >= count.getValue());
+            if (count.getKey().startsWith("h")) {
+                assertTrue(count.getKey() + ": " + estimate + " vs " + count.getValue(), estimate - count.getValue() <= maxOverestimate);
+            }
+        }
+    }
+
+    @Test
+    public void quantilesAreWithinRelativeAccuracy() {
+        final Sketches.QuantileSketch sketch = new Sketches.QuantileSketch(0.01, 2048);
+        final double[] values = new double[100_000];
+        final Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            // Latency-like: log-normal, spanning several orders of magnitude
+            values[i] = Math.exp(3 + 2 * random.nextGaussian());
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double quantile : new double[]{0, 0.01, 0.25, 0.5, 0.9, 0.99, 0.999, 1}) {
+            final double exact = values[(int) (quantile * (values.length - 1))];
+            assertEquals("p" + quantile, exact, sketch.quantile(quantile), exact * 0.01 + 1e-9);
+        }
+    }
+
+    @Test
+    public void mergedSketchesEqualSingleSketch() {
+        final Sketches.HyperLogLog singleDistinct = new Sketches.HyperLogLog();
+        final Sketches.HeavyHitters singleTop = new Sketches.HeavyHitters();
+        final Sketches.QuantileSketch singleQuantiles = new Sketches.QuantileSketch();
+        final List<Sketches.Sketch> single = Arrays.asList(singleDistinct, singleTop, singleQuantiles);
+        final List<Sketches.Sketch> first = Arrays.asList(new Sketches.HyperLogLog(), new Sketches.HeavyHitters(), new Sketches.QuantileSketch());
+        final List<Sketches.Sketch> second = Arrays.asList(new Sketches.HyperLogLog(), new Sketches.HeavyHitters(), new Sketches.QuantileSketch());
+        final Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            // Skewed towards small values
+            final String value = String.valueOf(random.nextInt(1000) * random.nextInt(1000) / 997);
+            final List<Sketches.Sketch> part = random.nextBoolean() ? first : second;
+            for (int s = 0; s < single.size(); s++) {
+                single.get(s).add(value);
+                part.get(s).add(value);
+            }
+        }
+
+        final Sketches.HyperLogLog mergedDistinct = new Sketches.HyperLogLog();
+        final Sketches.HeavyHitters mergedTop = new Sketches.HeavyHitters();
+        final Sketches.QuantileSketch mergedQuantiles = new Sketches.QuantileSketch();
+        final List<Sketches.Sketch> merged = Arrays.asList(mergedDistinct, mergedTop, mergedQuantiles);
+        for (int s = 0; s < merged.size(); s++) {
+            merged.get(s).merge(first.get(s).serialize());
+            merged.get(s).merge(second.get(s).serialize());
+        }
+
+        assertArrayEquals(singleDistinct.serialize(), mergedDistinct.serialize());
+        assertEquals(singleDistinct.summary(), mergedDistinct.summary());
+        // The merged top is re-estimated on the merged counters: the same values with the same estimates,
+        // but for values tied with the lowest top count, of which either sketch may keep any
+        assertEquals(singleTop.summary().get("total"), mergedTop.summary().get("total"));
+        final long lowestTopCount = singleTop.top().get(singleTop.top().size() - 1).getValue();
+        assertEquals(aboveCount(singleTop.top(), lowestTopCount), aboveCount(mergedTop.top(), lowestTopCount));
+        assertEquals(singleQuantiles.summary(), mergedQuantiles.summary());
+    }
+
+    private static Set<Map.Entry<String, Long>> aboveCount(List<Map.Entry<String, Long>> top, long count) {
+        final Set<Map.Entry<String, Long>> above = new HashSet<>();
+        for (Map.Entry<String, Long> hitter : top) {
+            if (hitter.getValue() > count) above.add(hitter);
+        }
+        return above;
+    }
+
+    /**
+     * @return n in 0..9 with probability proportional to n + 1
+     */
+    private static int hotIndex(Random random) {
+        int draw = random.nextInt(55);
+        int n = 0;
+        while (draw >= n + 1) {
+            draw -= n + 1;
+            n++;
+        }
+        return n;
+    }
+}
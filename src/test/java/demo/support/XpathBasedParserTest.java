@@ -0,0 +1,99 @@
+package demo.support;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Routes are checked by collecting the "id" metadata of the records each sink receives.
+ */
+public class XpathBasedParserTest {
+
+    private static final String FEED = ""
+            + "<items>"
+            + "<item id='i1'><tag id='t1'/><details><tag id='t2'/></details></item>"
+            + "<product id='p1'><tag id='t3'/></product>"
+            + "<item id='i2'/>"
+            + "</items>";
+
+    @Test
+    public void exactPatternMatchesOnlyThatPath() throws Exception {
+        final List<String> items = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/items/item", XpathBasedParser.ItemParser::new, ids(items)));
+        assertEquals(Arrays.asList("i1", "i2"), items);
+    }
+
+    @Test
+    public void starMatchesExactlyOneElement() throws Exception {
+        final List<String> children = new ArrayList<>();
+        final List<String> grandChildren = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/items/*", XpathBasedParser.ItemParser::new, ids(children))
+                .register("/items/*/tag", XpathBasedParser.ItemParser::new, ids(grandChildren)));
+        assertEquals(Arrays.asList("i1", "p1", "i2"), children);
+        assertEquals(Arrays.asList("t1", "t3"), grandChildren);
+    }
+
+    @Test
+    public void doubleStarAndDoubleSlashMatchAnyDepth() throws Exception {
+        final List<String> doubleStarTags = new ArrayList<>();
+        final List<String> doubleSlashTags = new ArrayList<>();
+        final List<String> itemTags = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/**/tag", XpathBasedParser.ItemParser::new, ids(doubleStarTags))
+                .register("//tag", XpathBasedParser.ItemParser::new, ids(doubleSlashTags))
+                .register("/items/item/**/tag", XpathBasedParser.ItemParser::new, ids(itemTags)));
+        assertEquals(Arrays.asList("t1", "t2", "t3"), doubleStarTags);
+        assertEquals(Arrays.asList("t1", "t2", "t3"), doubleSlashTags);
+        // "**" also matches zero elements
+        assertEquals(Arrays.asList("t1", "t2"), itemTags);
+    }
+
+    @Test
+    public void exactRoutesTakePrecedenceOverWildcardRoutes() throws Exception {
+        final List<String> exact = new ArrayList<>();
+        final List<String> wildcard = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/items/*", XpathBasedParser.ItemParser::new, ids(wildcard))
+                .register("/items/item", XpathBasedParser.ItemParser::new, ids(exact)));
+        assertEquals(Arrays.asList("i1", "i2"), exact);
+        assertEquals(Collections.singletonList("p1"), wildcard);
+    }
+
+    @Test
+    public void nestedTypesAreExtractedInTheSamePass() throws Exception {
+        final List<String> items = new ArrayList<>();
+        final List<String> tags = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/items/item", XpathBasedParser.ItemParser::new, ids(items))
+                .register("//tag", XpathBasedParser.ItemParser::new, ids(tags)));
+        assertEquals(Arrays.asList("i1", "i2"), items);
+        assertEquals(Arrays.asList("t1", "t2", "t3"), tags);
+    }
+
+    @Test
+    public void typeIsTheMatchedElementName() throws Exception {
+        final List<String> types = new ArrayList<>();
+        parse(new XpathBasedParser.Registry()
+                .register("/items/*", XpathBasedParser.ItemParser::new, (metadata, record) -> types.add(metadata.get("type"))));
+        assertEquals(Arrays.asList("item", "product", "item"), types);
+    }
+
+    private static void parse(XpathBasedParser.Registry registry) throws Exception {
+        new XpathBasedParser(registry).parse(new ByteArrayInputStream(FEED.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static BiConsumer<Map<String, String>, byte[]> ids(List<String> ids) {
+        return (metadata, record) -> ids.add(metadata.get("id"));
+    }
+}
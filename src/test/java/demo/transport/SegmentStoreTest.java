@@ -0,0 +1,139 @@
+package demo.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A crash is simulated by dropping a store without closing it: whatever it still buffers is lost.
+ */
+public class SegmentStoreTest {
+
+    private File baseDir;
+
+    @Before
+    public void createBaseDir() throws IOException {
+        baseDir = Files.createTempDirectory("segment-store").toFile();
+    }
+
+    @After
+    public void deleteBaseDir() throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(baseDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void unflushedRecordsLostInCrashAreNeverResolvedToOtherRecords() {
+        final SegmentStore crashed = new SegmentStore(baseDir);
+        for (int i = 0; i < 500; i++) {
+            crashed.write("item", "old" + i, bytes("old-content-" + i));
+        }
+
+        final SegmentStore recovered = new SegmentStore(baseDir);
+        for (int i = 0; i < 500; i++) {
+            recovered.write("item", "new" + i, bytes("new-content-" + i));
+        }
+        recovered.close();
+
+        final SegmentStore reopened = new SegmentStore(baseDir);
+        for (int i = 0; i < 500; i++) {
+            final byte[] old = reopened.read("item", "old" + i);
+            if (old != null) assertArrayEquals(bytes("old-content-" + i), old);
+            assertArrayEquals(bytes("new-content-" + i), reopened.read("item", "new" + i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void flushedRecordsSurviveCrash() {
+        final SegmentStore crashed = new SegmentStore(baseDir);
+        for (int i = 0; i < 1000; i++) {
+            crashed.write("item", "id" + i, bytes("content-" + i));
+        }
+        crashed.flush();
+        crashed.write("item", "unflushed", bytes("lost"));
+
+        final SegmentStore recovered = new SegmentStore(baseDir);
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(bytes("content-" + i), recovered.read("item", "id" + i));
+        }
+        assertNull(recovered.read("item", "unflushed"));
+        recovered.close();
+    }
+
+    @Test
+    public void bufferedRecordsAreReadWithoutFlushing() {
+        final SegmentStore crashed = new SegmentStore(baseDir);
+        crashed.write("item", "flushed", bytes("on-disk"));
+        crashed.flush();
+        crashed.write("item", "buffered", bytes("in-buffer"));
+        crashed.write("item", "other", bytes("also-in-buffer"));
+        assertArrayEquals(bytes("in-buffer"), crashed.read("item", "buffered"));
+        assertArrayEquals(bytes("also-in-buffer"), crashed.read("item", "other"));
+        assertArrayEquals(bytes("on-disk"), crashed.read("item", "flushed"));
+
+        // The reads above must not have written the buffered records out
+        final SegmentStore recovered = new SegmentStore(baseDir);
+        assertArrayEquals(bytes("on-disk"), recovered.read("item", "flushed"));
+        assertNull(recovered.read("item", "buffered"));
+        recovered.close();
+    }
+
+    @Test
+    public void tornRecordIsTruncatedOnRecovery() throws IOException {
+        final SegmentStore crashed = new SegmentStore(baseDir);
+        crashed.write("item", "complete", bytes("complete-content"));
+        crashed.flush();
+        // Half written record: header announcing more bytes than present
+        try (FileOutputStream segment = new FileOutputStream(new File(baseDir, "item/0000000000.seg"), true)) {
+            segment.write(new byte[]{0, 0, 0, 4, 't', 'o', 'r', 'n', 0, 0, 1, 0, 'x'});
+        }
+
+        final SegmentStore recovered = new SegmentStore(baseDir);
+        assertArrayEquals(bytes("complete-content"), recovered.read("item", "complete"));
+        assertNull(recovered.read("item", "torn"));
+        recovered.write("item", "after", bytes("after-content"));
+        recovered.close();
+
+        final SegmentStore reopened = new SegmentStore(baseDir);
+        assertArrayEquals(bytes("after-content"), reopened.read("item", "after"));
+        final int[] scanned = {0};
+        reopened.scan("item", (id, content) -> scanned[0]++);
+        assertEquals(2, scanned[0]);
+        reopened.close();
+    }
+
+    @Test
+    public void segmentsDoNotExceedMaxBytes() {
+        final long segmentMaxBytes = 4096;
+        final SegmentStore store = new SegmentStore(baseDir, segmentMaxBytes);
+        for (int i = 0; i < 1000; i++) {
+            store.write("item", "id" + i, new byte[100]);
+        }
+        store.close();
+
+        final File[] segmentFiles = new File(baseDir, "item").listFiles((dir, name) -> name.endsWith(".seg"));
+        assertTrue(segmentFiles.length > 1);
+        for (File segmentFile : segmentFiles) {
+            assertTrue(segmentFile + " is " + segmentFile.length() + " bytes", segmentFile.length() <= segmentMaxBytes);
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+}
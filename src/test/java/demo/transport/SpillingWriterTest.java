@@ -0,0 +1,142 @@
+package demo.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Delivery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Records are spilled by blocking the in-process broker, and drained once it is unblocked.
+ */
+public class SpillingWriterTest {
+
+    private File spillDir;
+    private InProcessBroker broker;
+    private final List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        spillDir = Files.createTempDirectory("spill").toFile();
+        broker = new InProcessBroker();
+        broker.newContext().channel.basicConsume("out", true, (consumerTag, delivery) -> deliveries.add(delivery), consumerTag -> {
+        });
+    }
+
+    @After
+    public void deleteSpillDir() throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(spillDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void spilledRecordsKeepAllTheirProperties() throws Exception {
+        final char[] longValue = new char[100_000];
+        Arrays.fill(longValue, 'x');
+        final Map<String, Object> headers = new HashMap<>();
+        headers.put("type", "item");
+        headers.put("int", 42);
+        headers.put("long", 1L << 40);
+        headers.put("flag", true);
+        headers.put("bytes", new byte[]{1, 2, 3});
+        headers.put("long-value", new String(longValue));
+        headers.put("nested", Collections.singletonMap("key", 7));
+        final AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType("application/json")
+                .contentEncoding("utf-8")
+                .deliveryMode(2)
+                .priority(5)
+                .correlationId("correlation")
+                .replyTo("reply")
+                .expiration("60000")
+                .messageId("message")
+                .timestamp(new Date(1_700_000_000_000L))
+                .type("event")
+                .userId("user")
+                .appId("app")
+                .headers(headers)
+                .build();
+
+        final RabbitMQ.SpillingWriter writer = new RabbitMQ.SpillingWriter("out", broker.newContext(), spillDir, 500);
+        broker.setBlocked(true);
+        writer.accept(properties, bytes("with-properties"));
+        writer.accept(bytes("without-properties"));
+        broker.setBlocked(false);
+        awaitDeliveries(2);
+        writer.close();
+
+        final AMQP.BasicProperties drained = deliveries.get(0).getProperties();
+        assertArrayEquals(bytes("with-properties"), deliveries.get(0).getBody());
+        assertEquals("application/json", drained.getContentType());
+        assertEquals("utf-8", drained.getContentEncoding());
+        assertEquals(Integer.valueOf(2), drained.getDeliveryMode());
+        assertEquals(Integer.valueOf(5), drained.getPriority());
+        assertEquals("correlation", drained.getCorrelationId());
+        assertEquals("reply", drained.getReplyTo());
+        assertEquals("60000", drained.getExpiration());
+        assertEquals("message", drained.getMessageId());
+        assertEquals(new Date(1_700_000_000_000L), drained.getTimestamp());
+        assertEquals("event", drained.getType());
+        assertEquals("user", drained.getUserId());
+        assertEquals("app", drained.getAppId());
+        // As delivered by a broker: strings come back as LongString, other header values keep their type
+        assertEquals("item", drained.getHeaders().get("type").toString());
+        assertEquals(42, drained.getHeaders().get("int"));
+        assertEquals(1L << 40, drained.getHeaders().get("long"));
+        assertEquals(true, drained.getHeaders().get("flag"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) drained.getHeaders().get("bytes"));
+        assertEquals(new String(longValue), drained.getHeaders().get("long-value").toString());
+        assertEquals(7, ((Map<?, ?>) drained.getHeaders().get("nested")).get("key"));
+
+        assertArrayEquals(bytes("without-properties"), deliveries.get(1).getBody());
+        assertNull(deliveries.get(1).getProperties());
+    }
+
+    @Test
+    public void spilledRecordsAreDrainedInOrder() throws Exception {
+        final RabbitMQ.SpillingWriter writer = new RabbitMQ.SpillingWriter("out", broker.newContext(), spillDir, 500);
+        broker.setBlocked(true);
+        for (int i = 0; i < 1000; i++) {
+            writer.accept(bytes("record-" + i));
+        }
+        broker.setBlocked(false);
+        awaitDeliveries(1000);
+        writer.close();
+
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(bytes("record-" + i), deliveries.get(i).getBody());
+        }
+    }
+
+    private void awaitDeliveries(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (deliveries.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, deliveries.size());
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+}